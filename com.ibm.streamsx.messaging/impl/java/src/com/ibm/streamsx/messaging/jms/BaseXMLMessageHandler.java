@@ -5,75 +5,261 @@
 
 package com.ibm.streamsx.messaging.jms;
 
-import java.io.StringWriter;
+import java.nio.ByteBuffer;
 import java.util.List;
 
 import javax.jms.JMSException;
 import javax.jms.Message;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Document;
+import javax.jms.Session;
+import javax.jms.TextMessage;
 
 import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
 import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.types.Blob;
 
+// Base class of the xml, wbe and wbe22 message classes. The documents are
+// written as text straight into a per thread buffer. The start and end tags
+// of the elements do not depend on the tuple, the subclasses build them
+// once, escaped, in their constructors; only the attribute values are
+// escaped for each tuple. The output is the same as the one of the default
+// Transformer serializing the equivalent DOM document.
 abstract class BaseXMLMessageHandler extends JMSMessageHandlerImpl {
 
+	// the xml declaration the documents start with
+	static final String XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>"; //$NON-NLS-1$
+
+	// digits used to write blobs in hexadecimal
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray(); //$NON-NLS-1$
+
+	// buffers larger than this are not kept for the next tuple
+	private static final int MAX_RETAINED_BUFFER_CAPACITY = 1024 * 1024;
+
+	// the buffer the documents are written into, one per thread as the
+	// tuples can be processed by several threads concurrently
+	private static final ThreadLocal<StringBuilder> buffer = new ThreadLocal<StringBuilder>() {
+		@Override
+		protected StringBuilder initialValue() {
+			return new StringBuilder(1024);
+		}
+	};
+
 	// variable to hold event name, this is required for the wbe and wbe22
 	// message classes
 	protected final String eventName;
-	// Transformer variable required to convert to xml type
-	private Transformer transformer;
-
-	// subroutine to construct the final xml ducument from the Document, it
-	// throws ParserConfigurationException and TransformerException
-	public String createFinalDocument(Document document)
-			throws TransformerException {
-		// ccreate the DOMSource
-		DOMSource source = new DOMSource(document);
-		// create the writer
-		StringWriter swriter = new StringWriter();
-		StreamResult result = new StreamResult(swriter);
-
-		// The transformer is not thread safe. From the documentation:
-		// An object of this class may not be used in multiple threads running
-		// concurrently. Different Transformers may be used concurrently by
-		// different threads.
-		// Hence synchronizing this
-		synchronized (transformer) {
-			transformer.transform(source, result);
-		}
-		return (swriter.toString());
-	}
+	// the native schema attributes resolved against the input stream schema
+	protected final NativeField[] fields;
 
 	// constructor
 	public BaseXMLMessageHandler(List<NativeSchema> nativeSchemaObjects,
-			String eventName) throws TransformerConfigurationException {
+			StreamSchema streamSchema, String eventName) {
 		// call the base class constructor to initialize the native schema
 		// attributes.
 		super(nativeSchemaObjects);
 		// set the event name, this is required for the wbe and wbe22 message
 		// classes
 		this.eventName = eventName;
-		this.transformer = TransformerFactory.newInstance().newTransformer();
+		this.fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
 	}
 
 	// constructor
 	public BaseXMLMessageHandler(List<NativeSchema> nativeSchemaObjects,
-			String eventName, Metric nTruncatedInserts)
-			throws TransformerConfigurationException {
+			StreamSchema streamSchema, String eventName, Metric nTruncatedInserts) {
 		// call the base class constructor to initialize the native schema
 		// attributes.
 		super(nativeSchemaObjects, nTruncatedInserts);
 		// set the event name, this is required for the wbe and wbe22 message
 		// classes
 		this.eventName = eventName;
-		this.transformer = TransformerFactory.newInstance().newTransformer();
+		this.fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+	}
+
+	// subroutine to write the document of a tuple into a TextMessage. The
+	// document is documentStart, then for each native schema attribute its
+	// start tag (without the closing '>'), its value and its end tag, then
+	// documentEnd.
+	protected Message createTextMessage(Tuple tuple, Session session,
+			String documentStart, String[] startTags, String[] endTags,
+			String documentEnd) throws JMSException {
+		// create a new TextMessage
+		TextMessage message;
+		synchronized (session) {
+			message = (TextMessage) session.createTextMessage();
+		}
+		StringBuilder document = buffer.get();
+		document.setLength(0);
+		document.append(documentStart);
+		// variable to specify if any of the attributes in the message is
+		// truncated
+		boolean isTruncated = false;
+
+		for (int i = 0; i < fields.length; i++) {
+			document.append(startTags[i]);
+			int valueStart = document.length();
+			document.append('>');
+			if (appendValue(document, tuple, fields[i])) {
+				isTruncated = true;
+			}
+			if (document.length() == valueStart + 1) {
+				// the element is empty
+				document.setLength(valueStart);
+				document.append("/>"); //$NON-NLS-1$
+			} else {
+				document.append(endTags[i]);
+			}
+		}
+		document.append(documentEnd);
+		// set the message
+		message.setText(document.toString());
+		if (document.capacity() > MAX_RETAINED_BUFFER_CAPACITY) {
+			buffer.remove();
+		}
+
+		// if the isTruncated boolean is set, increment the metric
+		// nTruncatedInserts
+		if (isTruncated) {
+			nTruncatedInserts.incrementValue(1);
+		}
+		return message;
+	}
+
+	// subroutine to write the value of an attribute as escaped text, returns
+	// true if the value was truncated
+	private static boolean appendValue(StringBuilder document, Tuple tuple,
+			NativeField field) {
+		final int index = field.index;
+		final int length = field.length;
+		// handle based on data type
+		switch (field.metaType) {
+		case RSTRING:
+		case USTRING: {
+			// extract the String
+			// get its length
+			String rdata = tuple.getString(index);
+			int size = rdata.length();
+			// If no length was specified in native schema or
+			// if the length of the String rdata is less than the length
+			// specified in native schema
+			if (length == LENGTH_ABSENT_IN_NATIVE_SCHEMA || size <= length) {
+				appendText(document, rdata, size);
+				return false;
+			}
+			// if the length of rdate is greater than the length specified
+			// in native schema truncate the String
+			appendText(document, rdata, length);
+			return true;
+		}
+		// spl types decimal32, decimal64,decimal128, timestamp are mapped
+		// to String.
+		case TIMESTAMP:
+			document.append(tuple.getTimestamp(index).getTimeAsSeconds().toString());
+			return false;
+		case DECIMAL32:
+		case DECIMAL64:
+		case DECIMAL128:
+			document.append(tuple.getBigDecimal(index).toString());
+			return false;
+		case BLOB: {
+			// extract the blob
+			// get its length
+			Blob bl = tuple.getBlob(index);
+			long size = bl.getLength();
+			boolean isTruncated = false;
+			// if the length of the blob is greater than the length
+			// specified in native schema truncate the blob
+			if (size > length && length != LENGTH_ABSENT_IN_NATIVE_SCHEMA) {
+				isTruncated = true;
+				size = length;
+			}
+			appendHex(document, bl.getByteBuffer(0, (int) size));
+			return isTruncated;
+		}
+		default: {
+			String stringdata = tuple.getString(index);
+			appendText(document, stringdata, stringdata.length());
+			return false;
+		}
+		}
+	}
+
+	// subroutine to write the bytes of a blob as lower case hexadecimal
+	static void appendHex(StringBuilder document, ByteBuffer bytes) {
+		while (bytes.hasRemaining()) {
+			int b = bytes.get();
+			document.append(HEX_DIGITS[(b >> 4) & 0xf]).append(HEX_DIGITS[b & 0xf]);
+		}
+	}
+
+	// subroutine to write the first end characters of a string as the text
+	// of an element
+	static void appendText(StringBuilder document, String text, int end) {
+		for (int i = 0; i < end; i++) {
+			char c = text.charAt(i);
+			switch (c) {
+			case '&':
+				document.append("&amp;"); //$NON-NLS-1$
+				break;
+			case '<':
+				document.append("&lt;"); //$NON-NLS-1$
+				break;
+			case '>':
+				document.append("&gt;"); //$NON-NLS-1$
+				break;
+			case '\t':
+			case '\n':
+				document.append(c);
+				break;
+			default:
+				if (c < 0x20 || (c >= 0x7f && c <= 0x9f)) {
+					// control characters
+					document.append("&#").append((int) c).append(';'); //$NON-NLS-1$
+				} else if (Character.isHighSurrogate(c) && i + 1 < end
+						&& Character.isLowSurrogate(text.charAt(i + 1))) {
+					// characters outside of the basic multilingual plane
+					document.append("&#").append(Character.toCodePoint(c, text.charAt(++i))).append(';'); //$NON-NLS-1$
+				} else {
+					document.append(c);
+				}
+				break;
+			}
+		}
+	}
+
+	// subroutine to escape the value of an xml attribute, used to build the
+	// tags
+	static String escapeAttribute(String value) {
+		StringBuilder escaped = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '&':
+				escaped.append("&amp;"); //$NON-NLS-1$
+				break;
+			case '<':
+				escaped.append("&lt;"); //$NON-NLS-1$
+				break;
+			case '>':
+				escaped.append("&gt;"); //$NON-NLS-1$
+				break;
+			case '"':
+				escaped.append("&quot;"); //$NON-NLS-1$
+				break;
+			default:
+				if (c < 0x20) {
+					// control characters, including tabs and new lines
+					escaped.append("&#").append((int) c).append(';'); //$NON-NLS-1$
+				} else if (Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1))) {
+					// characters outside of the basic multilingual plane
+					escaped.append("&#").append(Character.toCodePoint(c, value.charAt(++i))).append(';'); //$NON-NLS-1$
+				} else {
+					escaped.append(c);
+				}
+				break;
+			}
+		}
+		return escaped.toString();
 	}
 
 	// Currently we do not support the wbe, wbe22, xml message class for
@@ -84,4 +270,4 @@ abstract class BaseXMLMessageHandler extends JMSMessageHandlerImpl {
 		return MessageAction.SUCCESSFUL_MESSAGE;
 	}
 
-}
\ No newline at end of file
+}
@@ -16,8 +16,8 @@ import javax.jms.MessageNotReadableException;
 import javax.jms.Session;
 
 import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.Tuple;
-import com.ibm.streams.operator.Type;
 import com.ibm.streams.operator.Type.MetaType;
 import com.ibm.streams.operator.metrics.Metric;
 import com.ibm.streams.operator.types.Blob;
@@ -25,27 +25,55 @@ import com.ibm.streams.operator.types.RString;
 import com.ibm.streams.operator.types.Timestamp;
 import com.ibm.streams.operator.types.ValueFactory;
 
-//This class handles the JMS Bytes message type 
+//This class handles the JMS Bytes message type
 class BytesMessageHandler extends JMSMessageHandlerImpl {
 
+	// Writes one attribute of a tuple to a BytesMessage, returns true if the
+	// value was truncated
+	private interface FieldWriter {
+		boolean write(Tuple tuple, BytesMessage message) throws JMSException,
+				UnsupportedEncodingException;
+	}
+
+	// Reads one attribute of a BytesMessage into a tuple, returns false if
+	// the message is too short
+	private interface FieldReader {
+		boolean read(BytesMessage message, OutputTuple tuple)
+				throws JMSException, UnsupportedEncodingException;
+	}
+
 	// variable to set the codepage parameter, defaults to UTF-8
 	private final String codepage;
+	// the writers and readers of the native schema attributes, in the order
+	// of the native schema
+	private final FieldWriter[] writers;
+	private final FieldReader[] readers;
 
 	// constructor
-	BytesMessageHandler(List<NativeSchema> nativeSchemaObjects, String cpage) {
+	BytesMessageHandler(List<NativeSchema> nativeSchemaObjects,
+			StreamSchema streamSchema, String cpage) {
 		// call the base class constructor to initialize the native schema
 		// attributes.
 		super(nativeSchemaObjects);
 		// set the codepage parameter if one is specified in the operator model,
 		// if not a default value of UTF-8 is assumed
 		codepage = cpage;
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
-	BytesMessageHandler(List<NativeSchema> nativeSchemaObjects, String cpage, Metric nTruncatedInserts) {
+	BytesMessageHandler(List<NativeSchema> nativeSchemaObjects,
+			StreamSchema streamSchema, String cpage, Metric nTruncatedInserts) {
 		super(nativeSchemaObjects, nTruncatedInserts);
 		// set the codepage parameter if one is specified in the operator model,
 		// if not a default value of UTF-8 is assumed
 		codepage = cpage;
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
 	// For JMSSink operator, convert the incoming tuple to a JMS BytesMessage
@@ -61,53 +89,195 @@ class BytesMessageHandler extends JMSMessageHandlerImpl {
 		// truncated
 		boolean isTruncated = false;
 
-		for (NativeSchema currentObject : nativeSchemaObjects) {
-			// Iterate through the native schema attributes
-			// extract the name, type and length
-			final String name = currentObject.getName();
-			final NativeTypes type = currentObject.getType();
-			final int length = currentObject.getLength();
-			// handle based on the data-type
-			switch (type) {
-
-			case Bytes: {
-				// variable to hold the bytes data
-				byte[] bytedata = null;
-				int size;
-				MetaType metaType = tuple.getStreamSchema().getAttribute(name).getType().getMetaType();
-				switch (metaType) {
-
-				case DECIMAL32:
-				case DECIMAL64:
-				case DECIMAL128: {
-					bytedata = tuple.getBigDecimal(name).toString().getBytes(codepage);
-				}
-					break;
-				case TIMESTAMP: {
+		// Iterate through the native schema attributes
+		for (FieldWriter writer : writers) {
+			if (writer.write(tuple, message)) {
+				isTruncated = true;
+			}
+		}
+		// if the isTruncated boolean is set, increment the metric
+		// nTruncatedInserts
+		if (isTruncated) {
+			nTruncatedInserts.incrementValue(1);
+		}
+		// return the message
+		return message;
+	}
 
-					bytedata = ((tuple.getTimestamp(name).getTimeAsSeconds()).toString()).getBytes(codepage);
+	// For JMSSource operator, convert the incoming JMS BytesMessage to tuple
+	public MessageAction convertMessageToTuple(Message message, OutputTuple tuple) throws JMSException,
+			UnsupportedEncodingException {
+		if (!(message instanceof BytesMessage)) {
+			// We got a wrong message type so throw an error
+			return MessageAction.DISCARD_MESSAGE_WRONG_TYPE;
+		}
+		BytesMessage bytesMessage = (BytesMessage) message;
+		// Iterate through the native schema attributes
+		// Added the try catch block to catch the MessageEOFException
+		// This exception must be thrown when an unexpected end of stream
+		// has been reached when a BytesMessage is being read.
+		try {
+			for (FieldReader reader : readers) {
+				if (!reader.read(bytesMessage, tuple)) {
+					// The message is too short
+					return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
 				}
-					break;
-
-				case BLOB:
-					Blob bl = tuple.getBlob(name);
-
-					bytedata = new byte[(int) bl.getLength()];
-					bl.getByteBuffer(0, (int) bl.getLength()).get(bytedata);
-
-					break;
+			}
+		} catch (MessageEOFException meofEx) {
+			return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
+		} catch (MessageNotReadableException mnrEx) {
+			return MessageAction.DISCARD_MESSAGE_UNREADABLE;
+		}
+		// the message was read successfully
+		return MessageAction.SUCCESSFUL_MESSAGE;
+	}
 
-				case RSTRING:
+	// create the writers for JMSSink, every native schema attribute is present
+	// in the input stream schema
+	private FieldWriter[] newWriters(NativeField[] fields) {
+		FieldWriter[] fieldWriters = new FieldWriter[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			// JMSSource does not write messages, for it the attributes that
+			// are not in the output stream schema have no writer
+			if (fields[i].isPresent()) {
+				fieldWriters[i] = newWriter(fields[i]);
+			}
+		}
+		return fieldWriters;
+	}
 
-					bytedata = ((RString) tuple.getObject(name)).getData();
-					break;
+	private FieldReader[] newReaders(NativeField[] fields) {
+		FieldReader[] fieldReaders = new FieldReader[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fieldReaders[i] = newReader(fields[i]);
+		}
+		return fieldReaders;
+	}
 
-				case USTRING:
+	private FieldWriter newWriter(NativeField field) {
+		final int index = field.index;
+		// handle based on the data-type
+		switch (field.type) {
+		case Bytes:
+			return newBytesWriter(field);
+		case Byte:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeByte(tuple.getByte(index));
+					return false;
+				}
+			};
+		case Short:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeShort(tuple.getShort(index));
+					return false;
+				}
+			};
+		case Int:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeInt(tuple.getInt(index));
+					return false;
+				}
+			};
+		case Long:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeLong(tuple.getLong(index));
+					return false;
+				}
+			};
+		case Float:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeFloat(tuple.getFloat(index));
+					return false;
+				}
+			};
+		case Double:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeDouble(tuple.getDouble(index));
+					return false;
+				}
+			};
+		case Boolean:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) throws JMSException {
+					message.writeBoolean(tuple.getBoolean(index));
+					return false;
+				}
+			};
+		default:
+			// String is not a native type of the bytes message class
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, BytesMessage message) {
+					return false;
+				}
+			};
+		}
+	}
 
-					bytedata = tuple.getString(name).getBytes(codepage);
-					break;
+	private FieldWriter newBytesWriter(NativeField field) {
+		final int index = field.index;
+		final int length = field.length;
+		// variable required to pad the bytedata
+		// for RSTRING and USTRING we pad with space and for BLOB we pad
+		// with null
+		final byte topad = field.metaType == MetaType.BLOB ? 0 : (byte) ' ';
+		final BytesEncoder encoder;
+		switch (field.metaType) {
+		case DECIMAL32:
+		case DECIMAL64:
+		case DECIMAL128:
+			encoder = new BytesEncoder() {
+				public byte[] encode(Tuple tuple) throws UnsupportedEncodingException {
+					return tuple.getBigDecimal(index).toString().getBytes(codepage);
+				}
+			};
+			break;
+		case TIMESTAMP:
+			encoder = new BytesEncoder() {
+				public byte[] encode(Tuple tuple) throws UnsupportedEncodingException {
+					return ((tuple.getTimestamp(index).getTimeAsSeconds()).toString()).getBytes(codepage);
 				}
-				size = bytedata.length;
+			};
+			break;
+		case BLOB:
+			encoder = new BytesEncoder() {
+				public byte[] encode(Tuple tuple) {
+					Blob bl = tuple.getBlob(index);
+					byte[] bytedata = new byte[(int) bl.getLength()];
+					bl.getByteBuffer(0, (int) bl.getLength()).get(bytedata);
+					return bytedata;
+				}
+			};
+			break;
+		case RSTRING:
+			encoder = new BytesEncoder() {
+				public byte[] encode(Tuple tuple) {
+					return ((RString) tuple.getObject(index)).getData();
+				}
+			};
+			break;
+		default:
+			// USTRING
+			encoder = new BytesEncoder() {
+				public byte[] encode(Tuple tuple) throws UnsupportedEncodingException {
+					return tuple.getString(index).getBytes(codepage);
+				}
+			};
+			break;
+		}
+
+		return new FieldWriter() {
+			public boolean write(Tuple tuple, BytesMessage message) throws JMSException,
+					UnsupportedEncodingException {
+				boolean isTruncated = false;
+				// variable to hold the bytes data
+				byte[] bytedata = encoder.encode(tuple);
+				int size = bytedata.length;
 
 				// check for length in native schema
 				// spl types decimal32, decimal64,decimal128, timestamp have a
@@ -135,224 +305,195 @@ class BytesMessageHandler extends JMSMessageHandlerImpl {
 				}
 				// Need to truncate or pad as required
 				message.writeBytes(bytedata, 0, size);
-				// variable required to pad the bytedata
-				// for RSTRING and USTRING we pad with space and for BLOB we pad
-				// with null
-
-				byte topad = ' ';
-				if (tuple.getStreamSchema().getAttribute(name).getType().getMetaType() == Type.MetaType.BLOB)
-					topad = 0;
 				if (length > 0) {
-
 					for (int i = size; i < length; i++)
 						message.writeByte(topad);
 				}
+				return isTruncated;
 			}
-				break;
-
-			case Byte:
-				message.writeByte(tuple.getByte(name));
-				break;
-
-			case Short:
-				message.writeShort(tuple.getShort(name));
-				break;
-
-			case Int:
-				message.writeInt(tuple.getInt(name));
-				break;
-
-			case Long:
-				message.writeLong(tuple.getLong(name));
-				break;
-
-			case Float:
-				message.writeFloat(tuple.getFloat(name));
-				break;
-			case Double:
-				message.writeDouble(tuple.getDouble(name));
-				break;
-			case Boolean:
-				message.writeBoolean(tuple.getBoolean(name));
-			default:
-				break;
-			}
-		}
-		// if the isTruncated boolean is set, increment the metric
-		// nTruncatedInserts
-		if (isTruncated) {
-			nTruncatedInserts.incrementValue(1);
-		}
-		// return the message
-		return message;
+		};
 	}
 
-	// For JMSSource operator, convert the incoming JMS BytesMessage to tuple
-	public MessageAction convertMessageToTuple(Message message, OutputTuple tuple) throws JMSException,
-			UnsupportedEncodingException {
-		if (!(message instanceof BytesMessage)) {
-			// We got a wrong message type so throw an error
-			return MessageAction.DISCARD_MESSAGE_WRONG_TYPE;
-		}
-		BytesMessage bytesMessage = (BytesMessage) message;
-		boolean discard = false;
-		// Iterate through the native schema attributes
-		for (NativeSchema currentObject : nativeSchemaObjects) {
-			// Added the try catch block to catch the MessageEOFException
-			// This exception must be thrown when an unexpected end of stream
-			// has been reached when a BytesMessage is being read.
-			try {
-				// extract the name, type and length
-				final String name = currentObject.getName();
-				final NativeTypes type = currentObject.getType();
-				final int length = currentObject.getLength();
-				// handle based on data-tye
-				// extract the data from the message for each native schema
-				// attrbute and set into the tuple
-				switch (type) {
+	// Converts an attribute of type Bytes in the native schema to bytes
+	private interface BytesEncoder {
+		byte[] encode(Tuple tuple) throws UnsupportedEncodingException;
+	}
 
-				case Byte:
-					byte bt = bytesMessage.readByte();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setByte(name, bt);
+	private FieldReader newReader(NativeField field) {
+		// we are interested in the value only if the attribute is present in
+		// streams schema, otherwise it is read and skipped
+		final int index = field.index;
+		// handle based on data-tye
+		switch (field.type) {
+		case Bytes:
+			return newBytesReader(field);
+		case Byte:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					byte bt = message.readByte();
+					if (index >= 0) {
+						tuple.setByte(index, bt);
 					}
-					break;
-				case Short:
-					short s = bytesMessage.readShort();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setShort(name, s);
-					}
-					break;
-				case Int:
-					int i = bytesMessage.readInt();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setInt(name, i);
+					return true;
+				}
+			};
+		case Short:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					short s = message.readShort();
+					if (index >= 0) {
+						tuple.setShort(index, s);
 					}
-					break;
-				case Long:
-					long l = bytesMessage.readLong();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setLong(name, l);
+					return true;
+				}
+			};
+		case Int:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					int i = message.readInt();
+					if (index >= 0) {
+						tuple.setInt(index, i);
 					}
-					break;
-				case Float:
-					float f = bytesMessage.readFloat();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setFloat(name, f);
+					return true;
+				}
+			};
+		case Long:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					long l = message.readLong();
+					if (index >= 0) {
+						tuple.setLong(index, l);
 					}
-					break;
-				case Double:
-					double d = bytesMessage.readDouble();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setDouble(name, d);
+					return true;
+				}
+			};
+		case Float:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					float f = message.readFloat();
+					if (index >= 0) {
+						tuple.setFloat(index, f);
 					}
-					break;
-				case Boolean:
-					boolean bl = bytesMessage.readBoolean();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setBoolean(name, bl);
+					return true;
+				}
+			};
+		case Double:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					double d = message.readDouble();
+					if (index >= 0) {
+						tuple.setDouble(index, d);
 					}
-					break;
-				case Bytes: {
-					int size;
-					// check for length in native schema
-					// if -2 read a short from the message which will have the
-					// length of the attribute
-					if (length == -2) {
-						size = (int) bytesMessage.readShort();
-					} else if (length == -4) {
-						// if -2 read an int from the message which will have
-						// the length of the attribute
-						size = bytesMessage.readInt();
-					} else {
-						size = length;
+					return true;
+				}
+			};
+		case Boolean:
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException {
+					boolean bl = message.readBoolean();
+					if (index >= 0) {
+						tuple.setBoolean(index, bl);
 					}
+					return true;
+				}
+			};
+		default:
+			// String is not a native type of the bytes message class
+			return new FieldReader() {
+				public boolean read(BytesMessage message, OutputTuple tuple) {
+					return true;
+				}
+			};
+		}
+	}
 
-					byte b[] = new byte[size];
-					// read that many bytes from the message
-					int lenRead = bytesMessage.readBytes(b, size);
-					if (lenRead < size) {
-						// When the lenRead is less than size.
-						// Discard message saying message too
-						// short
-
-						discard = true;
-					} else {
-						// we are interested in this currentObject only if it is
-						// present in streams schema
-						if (currentObject.getIsPresentInStreamSchema()) {
-							switch (tuple.getStreamSchema().getAttribute(name).getType().getMetaType()) {
-
-							case DECIMAL32:
-							case DECIMAL64:
-							case DECIMAL128: {
-
-								String stringdata = new String(b, 0, lenRead, codepage);
-								BigDecimal bigDecValue = new BigDecimal(stringdata);
-								tuple.setBigDecimal(name, bigDecValue);
-
-							}
-								break;
-							case TIMESTAMP: {
-								String timeseriesData = new String(b, 0, lenRead, codepage);
-								BigDecimal bigDecValue = new BigDecimal(timeseriesData);
-								tuple.setTimestamp(name, Timestamp.getTimestamp(bigDecValue));
-
-							}
-								break;
-							case RSTRING: {
-
-								RString rstringData = new RString(b);
-								tuple.setObject(name, rstringData);
-							}
-								break;
-							case USTRING: {
-								String rstringData = new String(b, codepage);
-								tuple.setString(name, rstringData);
-							}
-								break;
-							case BLOB: {
-								Blob blob = ValueFactory.newBlob(b, 0, b.length);
-								tuple.setBlob(name, blob);
-								break;
-							}
-							} 
+	private FieldReader newBytesReader(NativeField field) {
+		final int length = field.length;
+		final BytesDecoder decoder = field.isPresent() ? newBytesDecoder(field) : null;
 
-						}
-					}
+		return new FieldReader() {
+			public boolean read(BytesMessage message, OutputTuple tuple) throws JMSException,
+					UnsupportedEncodingException {
+				int size;
+				// check for length in native schema
+				// if -2 read a short from the message which will have the
+				// length of the attribute
+				if (length == -2) {
+					size = (int) message.readShort();
+				} else if (length == -4) {
+					// if -4 read an int from the message which will have
+					// the length of the attribute
+					size = message.readInt();
+				} else {
+					size = length;
 				}
-					break;
 
+				byte b[] = new byte[size];
+				// read that many bytes from the message
+				int lenRead = message.readBytes(b, size);
+				if (lenRead < size) {
+					// When the lenRead is less than size.
+					// Discard message saying message too
+					// short
+					return false;
 				}
-
-				if (discard == true) {
-					// The message is too short
-					return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
+				if (decoder != null) {
+					decoder.decode(b, lenRead, tuple);
 				}
-			} catch (MessageEOFException meofEx) {
-				return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
+				return true;
 			}
+		};
+	}
 
-			catch (MessageNotReadableException mnrEx) {
-				return MessageAction.DISCARD_MESSAGE_UNREADABLE;
-			}
+	// Sets an attribute of type Bytes in the native schema into the tuple
+	private interface BytesDecoder {
+		void decode(byte[] b, int lenRead, OutputTuple tuple)
+				throws UnsupportedEncodingException;
+	}
 
+	private BytesDecoder newBytesDecoder(NativeField field) {
+		final int index = field.index;
+		switch (field.metaType) {
+		case DECIMAL32:
+		case DECIMAL64:
+		case DECIMAL128:
+			return new BytesDecoder() {
+				public void decode(byte[] b, int lenRead, OutputTuple tuple)
+						throws UnsupportedEncodingException {
+					String stringdata = new String(b, 0, lenRead, codepage);
+					tuple.setBigDecimal(index, new BigDecimal(stringdata));
+				}
+			};
+		case TIMESTAMP:
+			return new BytesDecoder() {
+				public void decode(byte[] b, int lenRead, OutputTuple tuple)
+						throws UnsupportedEncodingException {
+					String timeseriesData = new String(b, 0, lenRead, codepage);
+					BigDecimal bigDecValue = new BigDecimal(timeseriesData);
+					tuple.setTimestamp(index, Timestamp.getTimestamp(bigDecValue));
+				}
+			};
+		case RSTRING:
+			return new BytesDecoder() {
+				public void decode(byte[] b, int lenRead, OutputTuple tuple) {
+					tuple.setObject(index, new RString(b));
+				}
+			};
+		case BLOB:
+			return new BytesDecoder() {
+				public void decode(byte[] b, int lenRead, OutputTuple tuple) {
+					Blob blob = ValueFactory.newBlob(b, 0, b.length);
+					tuple.setBlob(index, blob);
+				}
+			};
+		default:
+			// USTRING
+			return new BytesDecoder() {
+				public void decode(byte[] b, int lenRead, OutputTuple tuple)
+						throws UnsupportedEncodingException {
+					tuple.setString(index, new String(b, codepage));
+				}
+			};
 		}
-		// the message was read successfully
-		return MessageAction.SUCCESSFUL_MESSAGE;
 	}
 }
@@ -650,18 +650,21 @@ public class JMSSink extends AbstractOperator implements StateHandler{
 		case map:
 			mhandler = new MapMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					nTruncatedInserts);
 
 			break;
 		case stream:
 			mhandler = new StreamMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					nTruncatedInserts);
 
 			break;
 		case bytes:
 			mhandler = new BytesMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					codepage, nTruncatedInserts);
 
 			break;
@@ -673,18 +676,21 @@ public class JMSSink extends AbstractOperator implements StateHandler{
 		case wbe:
 			mhandler = new WBETextMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					getInput(0).getName(), nTruncatedInserts);
 
 			break;
 		case wbe22:
 			mhandler = new WBE22TextMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					getInput(0).getName(), nTruncatedInserts);
 
 			break;
 		case xml:
 			mhandler = new XMLTextMessageHandler(
 					connectionDocumentParser.getNativeSchemaObjects(),
+					getInput(0).getStreamSchema(),
 					getInput(0).getName(), nTruncatedInserts);
 
 			break;
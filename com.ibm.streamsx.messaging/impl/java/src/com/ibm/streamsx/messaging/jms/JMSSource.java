@@ -669,15 +669,18 @@ public class JMSSource extends ProcessTupleProducer implements StateHandler{
 		switch (connectionDocumentParser.getMessageType()) {
 			case map:
 				messageHandlerImpl = new MapMessageHandler(
-						connectionDocumentParser.getNativeSchemaObjects());
+						connectionDocumentParser.getNativeSchemaObjects(),
+						getOutput(0).getStreamSchema());
 				break;
 			case stream:
 				messageHandlerImpl = new StreamMessageHandler(
-						connectionDocumentParser.getNativeSchemaObjects());
+						connectionDocumentParser.getNativeSchemaObjects(),
+						getOutput(0).getStreamSchema());
 				break;
 			case bytes:
 				messageHandlerImpl = new BytesMessageHandler(
-						connectionDocumentParser.getNativeSchemaObjects(), codepage);
+						connectionDocumentParser.getNativeSchemaObjects(),
+						getOutput(0).getStreamSchema(), codepage);
 				break;
 			case empty:
 				messageHandlerImpl = new EmptyMessageHandler(
@@ -5,6 +5,7 @@
 package com.ibm.streamsx.messaging.jms;
 
 import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.List;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
@@ -12,6 +13,7 @@ import javax.jms.Message;
 import javax.jms.MessageFormatException;
 import javax.jms.Session;
 import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.Tuple;
 import com.ibm.streams.operator.metrics.Metric;
 import com.ibm.streams.operator.types.Blob;
@@ -19,17 +21,43 @@ import com.ibm.streams.operator.types.Timestamp;
 
 //This class handles the JMS Map message type 
 class MapMessageHandler extends JMSMessageHandlerImpl {
+
+	// Sets one attribute of a tuple into a MapMessage, returns true if the
+	// value was truncated
+	private interface FieldWriter {
+		boolean write(Tuple tuple, MapMessage message) throws JMSException;
+	}
+
+	// Sets one entry of a MapMessage into a tuple
+	private interface FieldReader {
+		void read(MapMessage message, OutputTuple tuple) throws JMSException;
+	}
+
+	// the writers of the native schema attributes, and the readers of those
+	// that are present in the stream schema
+	private final FieldWriter[] writers;
+	private final FieldReader[] readers;
+
 	// constructor
-	public MapMessageHandler(List<NativeSchema> nativeSchemaObjects) {
+	public MapMessageHandler(List<NativeSchema> nativeSchemaObjects,
+			StreamSchema streamSchema) {
 		// call the base class constructor to initialize the native schema
 		// attributes.
 		super(nativeSchemaObjects);
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
 	// constructor
 	public MapMessageHandler(List<NativeSchema> nativeSchemaObjects,
-			Metric nTruncatedInserts) {
+			StreamSchema streamSchema, Metric nTruncatedInserts) {
 		super(nativeSchemaObjects, nTruncatedInserts);
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
 	// For JMSSink operator, convert the incoming tuple to a JMS MapMessage
@@ -44,106 +72,10 @@ class MapMessageHandler extends JMSMessageHandlerImpl {
 		// truncated
 		boolean isTruncated = false;
 
-		// get the attributes from the native schema
-		for (NativeSchema currentObject : nativeSchemaObjects) {
-			// iterate through the native schema elements
-			// extract the name, type and length
-			final String name = currentObject.getName();
-			final NativeTypes type = currentObject.getType();
-			final int length = currentObject.getLength();
-			// handle based on the data-type
-			switch (type) {
-
-			// For all cases, IllegalArgumentException and NPE(for setBytes) is
-			// not caught since name is always verified and is not null or not
-			// empty string.
-			case Bytes: {
-				// extract the blob from the tuple
-				// get its size
-				Blob bl = tuple.getBlob(name);
-				long size = bl.getLength();
-
-				// check for length in native schema
-				// if the length of the blob is greater than the length
-				// specified in native schema
-				// set the isTruncated to true
-				// truncate the blob
-				if (size > length && length != LENGTH_ABSENT_IN_NATIVE_SCHEMA) {
-					isTruncated = true;
-					size = length;
-				}
-				byte[] blobdata = new byte[(int) size];
-				bl.getByteBuffer(0, (int) size).get(blobdata);
-				// Since name is always verified and never null or empty string,
-				// we dont need to catch NPE
-
-				// set the bytes into the messaage
-				message.setBytes(name, blobdata);
-			}
-				break;
-			case String: {
-				switch (tuple.getStreamSchema().getAttribute(name).getType()
-						.getMetaType()) {
-				case RSTRING:
-				case USTRING:
-					// extract the String
-					// get its length
-					String rdata = tuple.getString(name);
-					int size = rdata.length();
-					// If no length was specified in native schema or
-					// if the length of the String rdata is less than the length
-					// specified in native schema
-					if (length == LENGTH_ABSENT_IN_NATIVE_SCHEMA
-							|| size <= length) {
-						message.setString(name, rdata);
-					}
-					// if the length of rdate is greater than the length
-					// specified in native schema
-					// set the isTruncated to true
-					// truncate the String
-					else if (size > length) {
-						isTruncated = true;
-						String stringdata = rdata.substring(0, length);
-						message.setString(name, stringdata);
-					}
-
-					break;
-				// spl types decimal32, decimal64,decimal128, timestamp are
-				// mapped to String.
-				case DECIMAL32:
-				case DECIMAL64:
-				case DECIMAL128:
-					message.setString(name, tuple.getBigDecimal(name)
-							.toString());
-					break;
-				case TIMESTAMP:
-					message.setString(name, (tuple.getTimestamp(name)
-							.getTimeAsSeconds()).toString());
-					break;
-				}
-			}
-				break;
-			case Byte:
-				message.setByte(name, tuple.getByte(name));
-				break;
-			case Short:
-				message.setShort(name, tuple.getShort(name));
-				break;
-			case Int:
-				message.setInt(name, tuple.getInt(name));
-				break;
-			case Long:
-				message.setLong(name, tuple.getLong(name));
-				break;
-			case Float:
-				message.setFloat(name, tuple.getFloat(name));
-				break;
-			case Double:
-				message.setDouble(name, tuple.getDouble(name));
-				break;
-			case Boolean:
-				message.setBoolean(name, tuple.getBoolean(name));
-				break;
+		// iterate through the native schema elements
+		for (FieldWriter writer : writers) {
+			if (writer.write(tuple, message)) {
+				isTruncated = true;
 			}
 		}
 		// if the isTruncated boolean is set, increment the metric
@@ -163,77 +95,256 @@ class MapMessageHandler extends JMSMessageHandlerImpl {
 			return MessageAction.DISCARD_MESSAGE_WRONG_TYPE;
 		} else {
 			MapMessage mapMessage = (MapMessage) message;
-			// Iterate through the native schema attributes
-			for (NativeSchema currentObject : nativeSchemaObjects) {
+			// Iterate through the native schema attributes present in the
+			// stream schema
+			try {
+				for (FieldReader reader : readers) {
+					reader.read(mapMessage, tuple);
+				}
+			} catch (MessageFormatException mfEx) {
+				// if MessageFormatException is thrown
+				return MessageAction.DISCARD_MESSAGE_MESSAGE_FORMAT_ERROR;
+			}
+			// Messsage was successfully read
+			return MessageAction.SUCCESSFUL_MESSAGE;
+		}
+	}
 
-				try {
-					// extract the name, type and length
-					final String name = currentObject.getName();
-					final NativeTypes type = currentObject.getType();
-					// handle based on data-tye
-					// extract the data from the message for each native schema
-					// attrbute and set into the tuple
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema())
-						switch (type) {
-						case Byte:
-							tuple.setByte(name, mapMessage.getByte(name));
-							break;
-						case Short:
-							tuple.setShort(name, mapMessage.getShort(name));
-							break;
-						case Int:
-							tuple.setInt(name, mapMessage.getInt(name));
-							break;
-						case Long:
-							tuple.setLong(name, mapMessage.getLong(name));
-							break;
-						case Float:
-							tuple.setFloat(name, mapMessage.getFloat(name));
-							break;
-						case Double:
-							tuple.setDouble(name, mapMessage.getDouble(name));
-							break;
-						case Boolean:
-							tuple.setBoolean(name, mapMessage.getBoolean(name));
-							break;
-						case String:
-							switch (tuple.getStreamSchema().getAttribute(name)
-									.getType().getMetaType()) {
-							case RSTRING:
-							case USTRING:
-								tuple.setString(name,
-										mapMessage.getString(name));
-								break;
-							case DECIMAL32:
-							case DECIMAL64:
-							case DECIMAL128: {
+	// create the writers for JMSSink, every native schema attribute is present
+	// in the input stream schema
+	private FieldWriter[] newWriters(NativeField[] fields) {
+		List<FieldWriter> fieldWriters = new ArrayList<FieldWriter>(fields.length);
+		for (NativeField field : fields) {
+			if (field.isPresent()) {
+				fieldWriters.add(newWriter(field));
+			}
+		}
+		return fieldWriters.toArray(new FieldWriter[fieldWriters.size()]);
+	}
+
+	// create the readers for JMSSource, we are interested only in the native
+	// schema attributes present in the output stream schema
+	private FieldReader[] newReaders(NativeField[] fields) {
+		List<FieldReader> fieldReaders = new ArrayList<FieldReader>(fields.length);
+		for (NativeField field : fields) {
+			if (field.isPresent()) {
+				fieldReaders.add(newReader(field));
+			}
+		}
+		return fieldReaders.toArray(new FieldReader[fieldReaders.size()]);
+	}
 
-								BigDecimal bigDecValue = new BigDecimal(
-										mapMessage.getString(name));
-								tuple.setBigDecimal(name, bigDecValue);
-							}
-								break;
-							case TIMESTAMP: {
-								BigDecimal bigDecValue = new BigDecimal(
-										mapMessage.getString(name));
-								tuple.setTimestamp(name,
-										Timestamp.getTimestamp(bigDecValue));
-							}
-								break;
-							}
-							break;
+	// For all cases, IllegalArgumentException and NPE(for setBytes) is
+	// not caught since name is always verified and is not null or not
+	// empty string.
+	private FieldWriter newWriter(NativeField field) {
+		final String name = field.name;
+		final int index = field.index;
+		final int length = field.length;
+		// handle based on the data-type
+		switch (field.type) {
+		case Bytes:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					boolean isTruncated = false;
+					// extract the blob from the tuple
+					// get its size
+					Blob bl = tuple.getBlob(index);
+					long size = bl.getLength();
 
+					// check for length in native schema
+					// if the length of the blob is greater than the length
+					// specified in native schema
+					// set the isTruncated to true
+					// truncate the blob
+					if (size > length && length != LENGTH_ABSENT_IN_NATIVE_SCHEMA) {
+						isTruncated = true;
+						size = length;
+					}
+					byte[] blobdata = new byte[(int) size];
+					bl.getByteBuffer(0, (int) size).get(blobdata);
+					// set the bytes into the messaage
+					message.setBytes(name, blobdata);
+					return isTruncated;
+				}
+			};
+		case String:
+			switch (field.metaType) {
+			// spl types decimal32, decimal64,decimal128, timestamp are
+			// mapped to String.
+			case DECIMAL32:
+			case DECIMAL64:
+			case DECIMAL128:
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+						message.setString(name, tuple.getBigDecimal(index).toString());
+						return false;
+					}
+				};
+			case TIMESTAMP:
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+						message.setString(name, (tuple.getTimestamp(index)
+								.getTimeAsSeconds()).toString());
+						return false;
+					}
+				};
+			default:
+				// RSTRING and USTRING
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+						// extract the String
+						String rdata = tuple.getString(index);
+						// If no length was specified in native schema or
+						// if the length of the String rdata is less than the
+						// length specified in native schema
+						if (length == LENGTH_ABSENT_IN_NATIVE_SCHEMA
+								|| rdata.length() <= length) {
+							message.setString(name, rdata);
+							return false;
 						}
-				} catch (MessageFormatException mfEx) {
-					// if MessageFormatException is thrown
-					return MessageAction.DISCARD_MESSAGE_MESSAGE_FORMAT_ERROR;
+						// if the length of rdate is greater than the length
+						// specified in native schema truncate the String
+						message.setString(name, rdata.substring(0, length));
+						return true;
+					}
+				};
+			}
+		case Byte:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setByte(name, tuple.getByte(index));
+					return false;
+				}
+			};
+		case Short:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setShort(name, tuple.getShort(index));
+					return false;
+				}
+			};
+		case Int:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setInt(name, tuple.getInt(index));
+					return false;
+				}
+			};
+		case Long:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setLong(name, tuple.getLong(index));
+					return false;
+				}
+			};
+		case Float:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setFloat(name, tuple.getFloat(index));
+					return false;
 				}
+			};
+		case Double:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setDouble(name, tuple.getDouble(index));
+					return false;
+				}
+			};
+		default:
+			// Boolean
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, MapMessage message) throws JMSException {
+					message.setBoolean(name, tuple.getBoolean(index));
+					return false;
+				}
+			};
+		}
+	}
 
+	private FieldReader newReader(NativeField field) {
+		final String name = field.name;
+		final int index = field.index;
+		// handle based on data-tye
+		switch (field.type) {
+		case Byte:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setByte(index, message.getByte(name));
+				}
+			};
+		case Short:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setShort(index, message.getShort(name));
+				}
+			};
+		case Int:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setInt(index, message.getInt(name));
+				}
+			};
+		case Long:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setLong(index, message.getLong(name));
+				}
+			};
+		case Float:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setFloat(index, message.getFloat(name));
+				}
+			};
+		case Double:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setDouble(index, message.getDouble(name));
+				}
+			};
+		case Boolean:
+			return new FieldReader() {
+				public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+					tuple.setBoolean(index, message.getBoolean(name));
+				}
+			};
+		case String:
+			switch (field.metaType) {
+			case RSTRING:
+			case USTRING:
+				return new FieldReader() {
+					public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+						tuple.setString(index, message.getString(name));
+					}
+				};
+			case DECIMAL32:
+			case DECIMAL64:
+			case DECIMAL128:
+				return new FieldReader() {
+					public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+						tuple.setBigDecimal(index, new BigDecimal(message.getString(name)));
+					}
+				};
+			case TIMESTAMP:
+				return new FieldReader() {
+					public void read(MapMessage message, OutputTuple tuple) throws JMSException {
+						BigDecimal bigDecValue = new BigDecimal(message.getString(name));
+						tuple.setTimestamp(index, Timestamp.getTimestamp(bigDecValue));
+					}
+				};
+			default:
+				break;
 			}
-			// Messsage was successfully read
-			return MessageAction.SUCCESSFUL_MESSAGE;
+			break;
+		default:
+			// Bytes are not read from a MapMessage
+			break;
 		}
+		return new FieldReader() {
+			public void read(MapMessage message, OutputTuple tuple) {
+			}
+		};
 	}
 }
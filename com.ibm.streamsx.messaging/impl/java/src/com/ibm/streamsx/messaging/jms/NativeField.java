@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright (C) 2013, 2014, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.jms;
+
+import java.util.List;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Type.MetaType;
+
+//Class that holds an attribute of the native schema resolved against the
+//stream schema of the port. The message handlers resolve the native schema
+//once when they are created, so that tuples are accessed by attribute index
+//rather than looked up by name for each attribute of each message.
+class NativeField {
+
+	// variables to hold the name, type and length from the native schema
+	final String name;
+	final NativeTypes type;
+	final int length;
+	// index of the attribute in the stream schema, -1 if the native schema
+	// element is not present in the stream schema
+	final int index;
+	// meta type and SPL type of the attribute in the stream schema, null if
+	// the native schema element is not present in the stream schema
+	final MetaType metaType;
+	final String languageType;
+
+	private NativeField(NativeSchema nativeSchema, Attribute attribute) {
+		this.name = nativeSchema.getName();
+		this.type = nativeSchema.getType();
+		this.length = nativeSchema.getLength();
+		if (attribute != null) {
+			this.index = attribute.getIndex();
+			this.metaType = attribute.getType().getMetaType();
+			this.languageType = attribute.getType().getLanguageType();
+		} else {
+			this.index = -1;
+			this.metaType = null;
+			this.languageType = null;
+		}
+	}
+
+	// true if the native schema element is present in the stream schema
+	boolean isPresent() {
+		return index >= 0;
+	}
+
+	// resolve the native schema attributes in their order against the
+	// stream schema
+	static NativeField[] resolve(List<NativeSchema> nativeSchemaObjects,
+			StreamSchema streamSchema) {
+		NativeField[] fields = new NativeField[nativeSchemaObjects.size()];
+		int i = 0;
+		for (NativeSchema currentObject : nativeSchemaObjects) {
+			Attribute attribute = currentObject.getIsPresentInStreamSchema() ? streamSchema
+					.getAttribute(currentObject.getName()) : null;
+			fields[i++] = new NativeField(currentObject, attribute);
+		}
+		return fields;
+	}
+}
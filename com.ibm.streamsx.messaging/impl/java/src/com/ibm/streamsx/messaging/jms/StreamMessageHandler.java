@@ -17,6 +17,7 @@ import javax.jms.Session;
 import javax.jms.StreamMessage;
 
 import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.Tuple;
 import com.ibm.streams.operator.metrics.Metric;
 import com.ibm.streams.operator.types.Blob;
@@ -24,16 +25,41 @@ import com.ibm.streams.operator.types.Timestamp;
 
 //This class handles the JMS Stream message type 
 class StreamMessageHandler extends JMSMessageHandlerImpl {
-	
+
+	// Writes one attribute of a tuple to a StreamMessage, returns true if the
+	// value was truncated
+	private interface FieldWriter {
+		boolean write(Tuple tuple, StreamMessage message) throws JMSException;
+	}
+
+	// Reads one attribute of a StreamMessage into a tuple
+	private interface FieldReader {
+		void read(StreamMessage message, OutputTuple tuple) throws JMSException;
+	}
+
+	// the writers and readers of the native schema attributes, in the order
+	// of the native schema
+	private final FieldWriter[] writers;
+	private final FieldReader[] readers;
+
 	// constructor
-	public StreamMessageHandler(List<NativeSchema> nativeSchemaObjects) {
+	public StreamMessageHandler(List<NativeSchema> nativeSchemaObjects,
+			StreamSchema streamSchema) {
 		super(nativeSchemaObjects);
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
 	// constructor
 	public StreamMessageHandler(List<NativeSchema> nativeSchemaObjects,
-			Metric nTruncatedInserts) {
+			StreamSchema streamSchema, Metric nTruncatedInserts) {
 		super(nativeSchemaObjects, nTruncatedInserts);
+		// resolve the native schema attributes once
+		NativeField[] fields = NativeField.resolve(nativeSchemaObjects, streamSchema);
+		writers = newWriters(fields);
+		readers = newReaders(fields);
 	}
 
 	// For JMSSink operator, convert the incoming tuple to a JMS StreamMessage
@@ -48,110 +74,10 @@ class StreamMessageHandler extends JMSMessageHandlerImpl {
 		// truncated
 		boolean isTruncated = false;
 
-		// get the attributes from the native schema
-		for (NativeSchema currentObject : nativeSchemaObjects) {
-			// iterate through the native schema elements
-			// extract the name, type and length
-
-			final String name = currentObject.getName();
-			final NativeTypes type = currentObject.getType();
-			final int length = currentObject.getLength();
-			// handle based on the data-type
-			switch (type) {
-			// For all cases, IllegalArgumentException and NPE(for setBytes) is
-			// not caught since name is always verified and is not null or not
-			// empty string.
-
-			case Bytes: {
-				// extract the blob from the tuple
-				// get its size
-				Blob bl = tuple.getBlob(name);
-				long size = bl.getLength();
-
-				// check for length in native schema
-				// if the length of the blob is greater than the length
-				// specified in native schema
-				// set the isTruncated to true
-				// truncate the blob
-				if (size > length && length != LENGTH_ABSENT_IN_NATIVE_SCHEMA) {
-					isTruncated = true;
-					size = length;
-				}
-				// set the bytes in the message
-				byte[] blobdata = new byte[(int) size];
-				bl.getByteBuffer(0, (int) size).get(blobdata);
-				message.writeBytes(blobdata);
-			}
-				break;
-
-			case String: {
-				switch (tuple.getStreamSchema().getAttribute(name).getType()
-						.getMetaType()) {
-				case RSTRING:
-				case USTRING:
-
-					// extract the String
-					// get its length
-					String rdata = tuple.getString(name);
-					int size = rdata.length();
-					// If no length was specified in native schema or
-					// if the length of the String rdata is less than the length
-					// specified in native schema
-					if (length == LENGTH_ABSENT_IN_NATIVE_SCHEMA
-							|| size <= length) {
-
-						message.writeString(rdata);
-					}
-					// if the length of rdate is greater than the length
-					// specified in native schema
-					// set the isTruncated to true
-					// truncate the String
-					else if (size > length) {
-						isTruncated = true;
-						String stringdata = rdata.substring(0, length);
-						message.writeString(stringdata);
-					}
-					break;
-				// spl types decimal32, decimal64,decimal128, timestamp are
-				// mapped to String.
-				case DECIMAL32:
-				case DECIMAL64:
-				case DECIMAL128:
-					message.writeString(tuple.getBigDecimal(name).toString());
-					break;
-				case TIMESTAMP:
-					message.writeString((tuple.getTimestamp(name)
-							.getTimeAsSeconds()).toString());
-					break;
-				}
-			}
-				break;
-
-			case Byte:
-				message.writeByte(tuple.getByte(name));
-				break;
-
-			case Short:
-				message.writeShort(tuple.getShort(name));
-				break;
-
-			case Int:
-				message.writeInt(tuple.getInt(name));
-				break;
-
-			case Long:
-				message.writeLong(tuple.getLong(name));
-				break;
-
-			case Float:
-				message.writeFloat(tuple.getFloat(name));
-				break;
-			case Double:
-				message.writeDouble(tuple.getDouble(name));
-				break;
-			case Boolean:
-				message.writeBoolean(tuple.getBoolean(name));
-				break;
+		// iterate through the native schema elements
+		for (FieldWriter writer : writers) {
+			if (writer.write(tuple, message)) {
+				isTruncated = true;
 			}
 		}
 		// if the isTruncated boolean is set, increment the metric
@@ -171,131 +97,283 @@ class StreamMessageHandler extends JMSMessageHandlerImpl {
 		}
 		StreamMessage streamMessage = (StreamMessage) message;
 		// Iterate through the native schema attributes
-		for (NativeSchema currentObject : nativeSchemaObjects) {
-			// Added the try catch block to catch the MessageEOFException
-			// This exception must be thrown when an unexpected end of stream
-			// has been reached when a StreamMessage is being read.
-			try {
-				// extract the name and type
-				final String name = currentObject.getName();
-				final NativeTypes type = currentObject.getType();
-				// handle based on data-tye
-				// extract the data from the message for each native schema
-				// attrbute and set into the tuple
-				switch (type) {
-				case Byte:
-					byte byteData = streamMessage.readByte();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setByte(name, byteData);
-					}
-					break;
-				case Short:
+		// Added the try catch block to catch the MessageEOFException
+		// This exception must be thrown when an unexpected end of stream
+		// has been reached when a StreamMessage is being read.
+		try {
+			for (FieldReader reader : readers) {
+				reader.read(streamMessage, tuple);
+			}
+		} catch (MessageEOFException meofEx) {
+			return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
+		} catch (MessageNotReadableException mnrEx) {
+			return MessageAction.DISCARD_MESSAGE_UNREADABLE;
+		} catch (MessageFormatException mfEx) {
+			return MessageAction.DISCARD_MESSAGE_MESSAGE_FORMAT_ERROR;
+		}
+		// Messsage was successfully read
+		return MessageAction.SUCCESSFUL_MESSAGE;
 
-					short shortData = streamMessage.readShort();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setShort(name, shortData);
-					}
-					break;
-				case Int:
+	}
 
-					int intData = streamMessage.readInt();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setInt(name, intData);
-					}
-					break;
-				case Long:
+	// create the writers for JMSSink, every native schema attribute is present
+	// in the input stream schema
+	private FieldWriter[] newWriters(NativeField[] fields) {
+		FieldWriter[] fieldWriters = new FieldWriter[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			// JMSSource does not write messages, for it the attributes that
+			// are not in the output stream schema have no writer
+			if (fields[i].isPresent()) {
+				fieldWriters[i] = newWriter(fields[i]);
+			}
+		}
+		return fieldWriters;
+	}
 
-					long longData = streamMessage.readLong();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setLong(name, longData);
-					}
-					break;
-				case Float:
+	private FieldReader[] newReaders(NativeField[] fields) {
+		FieldReader[] fieldReaders = new FieldReader[fields.length];
+		for (int i = 0; i < fields.length; i++) {
+			fieldReaders[i] = newReader(fields[i]);
+		}
+		return fieldReaders;
+	}
 
-					float floatData = streamMessage.readFloat();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setFloat(name, floatData);
-					}
-					break;
-				case Double:
+	// For all cases, IllegalArgumentException and NPE(for setBytes) is
+	// not caught since name is always verified and is not null or not
+	// empty string.
+	private FieldWriter newWriter(NativeField field) {
+		final int index = field.index;
+		final int length = field.length;
+		// handle based on the data-type
+		switch (field.type) {
+		case Bytes:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					boolean isTruncated = false;
+					// extract the blob from the tuple
+					// get its size
+					Blob bl = tuple.getBlob(index);
+					long size = bl.getLength();
 
-					double doubleData = streamMessage.readDouble();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setDouble(name, doubleData);
+					// check for length in native schema
+					// if the length of the blob is greater than the length
+					// specified in native schema
+					// set the isTruncated to true
+					// truncate the blob
+					if (size > length && length != LENGTH_ABSENT_IN_NATIVE_SCHEMA) {
+						isTruncated = true;
+						size = length;
 					}
-					break;
-				case Boolean:
-
-					boolean booleanData = streamMessage.readBoolean();
-					// we are interested in this currentObject only if it is
-					// present in streams schema
-					if (currentObject.getIsPresentInStreamSchema()) {
-						tuple.setBoolean(name, booleanData);
+					// set the bytes in the message
+					byte[] blobdata = new byte[(int) size];
+					bl.getByteBuffer(0, (int) size).get(blobdata);
+					message.writeBytes(blobdata);
+					return isTruncated;
+				}
+			};
+		case String:
+			switch (field.metaType) {
+			// spl types decimal32, decimal64,decimal128, timestamp are
+			// mapped to String.
+			case DECIMAL32:
+			case DECIMAL64:
+			case DECIMAL128:
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+						message.writeString(tuple.getBigDecimal(index).toString());
+						return false;
 					}
-					break;
-				case String:
-
-					switch (tuple.getStreamSchema().getAttribute(name)
-							.getType().getMetaType()) {
-					case RSTRING:
-					case USTRING:
-						String stringData = streamMessage.readString();
-						// we are interested in this currentObject only if it is
-						// present in streams schema
-						if (currentObject.getIsPresentInStreamSchema()) {
-							tuple.setString(name, stringData);
-						}
-						break;
-					case DECIMAL32:
-					case DECIMAL64:
-					case DECIMAL128: {
-						BigDecimal bigDecValue = new BigDecimal(
-								streamMessage.readString());
-						// we are interested in this currentObject only if it is
-						// present in streams schema
-						if (currentObject.getIsPresentInStreamSchema()) {
-							tuple.setBigDecimal(name, bigDecValue);
-						}
+				};
+			case TIMESTAMP:
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+						message.writeString((tuple.getTimestamp(index)
+								.getTimeAsSeconds()).toString());
+						return false;
 					}
-						break;
-					case TIMESTAMP: {
-						BigDecimal bigDecValue = new BigDecimal(
-								streamMessage.readString());
-						// we are interested in this currentObject only if it is
-						// present in streams schema
-						if (currentObject.getIsPresentInStreamSchema()) {
-							tuple.setTimestamp(name,
-									Timestamp.getTimestamp(bigDecValue));
+				};
+			default:
+				// RSTRING and USTRING
+				return new FieldWriter() {
+					public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+						// extract the String
+						String rdata = tuple.getString(index);
+						// If no length was specified in native schema or
+						// if the length of the String rdata is less than the
+						// length specified in native schema
+						if (length == LENGTH_ABSENT_IN_NATIVE_SCHEMA
+								|| rdata.length() <= length) {
+							message.writeString(rdata);
+							return false;
 						}
+						// if the length of rdate is greater than the length
+						// specified in native schema truncate the String
+						message.writeString(rdata.substring(0, length));
+						return true;
 					}
-						break;
-					}
+				};
+			}
+		case Byte:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeByte(tuple.getByte(index));
+					return false;
+				}
+			};
+		case Short:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeShort(tuple.getShort(index));
+					return false;
+				}
+			};
+		case Int:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeInt(tuple.getInt(index));
+					return false;
+				}
+			};
+		case Long:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeLong(tuple.getLong(index));
+					return false;
+				}
+			};
+		case Float:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeFloat(tuple.getFloat(index));
+					return false;
+				}
+			};
+		case Double:
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeDouble(tuple.getDouble(index));
+					return false;
+				}
+			};
+		default:
+			// Boolean
+			return new FieldWriter() {
+				public boolean write(Tuple tuple, StreamMessage message) throws JMSException {
+					message.writeBoolean(tuple.getBoolean(index));
+					return false;
+				}
+			};
+		}
+	}
 
-					break;
+	// every native schema attribute is read from the message, we are
+	// interested in its value only if it is present in streams schema
+	private FieldReader newReader(NativeField field) {
+		final int index = field.index;
+		// handle based on data-tye
+		switch (field.type) {
+		case Byte:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					byte byteData = message.readByte();
+					if (index >= 0) {
+						tuple.setByte(index, byteData);
+					}
+				}
+			};
+		case Short:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					short shortData = message.readShort();
+					if (index >= 0) {
+						tuple.setShort(index, shortData);
+					}
+				}
+			};
+		case Int:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					int intData = message.readInt();
+					if (index >= 0) {
+						tuple.setInt(index, intData);
+					}
+				}
+			};
+		case Long:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					long longData = message.readLong();
+					if (index >= 0) {
+						tuple.setLong(index, longData);
+					}
+				}
+			};
+		case Float:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					float floatData = message.readFloat();
+					if (index >= 0) {
+						tuple.setFloat(index, floatData);
+					}
+				}
+			};
+		case Double:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					double doubleData = message.readDouble();
+					if (index >= 0) {
+						tuple.setDouble(index, doubleData);
+					}
+				}
+			};
+		case Boolean:
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+					boolean booleanData = message.readBoolean();
+					if (index >= 0) {
+						tuple.setBoolean(index, booleanData);
+					}
 				}
-			} catch (MessageEOFException meofEx) {
-				return MessageAction.DISCARD_MESSAGE_EOF_REACHED;
-			} catch (MessageNotReadableException mnrEx) {
-				return MessageAction.DISCARD_MESSAGE_UNREADABLE;
-			} catch (MessageFormatException mfEx) {
-				return MessageAction.DISCARD_MESSAGE_MESSAGE_FORMAT_ERROR;
+			};
+		case String:
+			if (!field.isPresent()) {
+				// the string is read and skipped
+				return new FieldReader() {
+					public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+						message.readString();
+					}
+				};
 			}
-
-		}// end for
-			// Messsage was successfully read
-		return MessageAction.SUCCESSFUL_MESSAGE;
-
+			switch (field.metaType) {
+			case DECIMAL32:
+			case DECIMAL64:
+			case DECIMAL128:
+				return new FieldReader() {
+					public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+						tuple.setBigDecimal(index, new BigDecimal(message.readString()));
+					}
+				};
+			case TIMESTAMP:
+				return new FieldReader() {
+					public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+						BigDecimal bigDecValue = new BigDecimal(message.readString());
+						tuple.setTimestamp(index, Timestamp.getTimestamp(bigDecValue));
+					}
+				};
+			default:
+				// RSTRING and USTRING
+				return new FieldReader() {
+					public void read(StreamMessage message, OutputTuple tuple) throws JMSException {
+						tuple.setString(index, message.readString());
+					}
+				};
+			}
+		default:
+			// Bytes are not read from a StreamMessage
+			return new FieldReader() {
+				public void read(StreamMessage message, OutputTuple tuple) {
+				}
+			};
+		}
 	}
 }
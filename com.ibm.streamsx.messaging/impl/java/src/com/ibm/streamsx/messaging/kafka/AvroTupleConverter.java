@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.io.EncoderFactory;
+
+import com.ibm.streams.operator.Attribute;
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.Type.MetaType;
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.types.Blob;
+import com.ibm.streams.operator.types.ValueFactory;
+
+/*
+ * Converts between Avro binary records and tuples. The fields of the record
+ * map to the attributes of the same name, resolved to attribute indexes
+ * once. Field and attribute types that cannot be converted are rejected at
+ * that time. Fields that are a union of null and one type map like that
+ * type, a null value leaving the attribute at its default value.
+ *
+ * With a schema directory, standing in for a schema registry, messages start
+ * with a zero byte and the id of their writer schema as a 4 byte integer.
+ * The writer schema is read from <id>.avsc in the directory and resolved
+ * against the reader schema, once per id. With a schema id, encoded messages
+ * get that prefix.
+ *
+ * Decoding reuses its decoder and record, so a converter must only decode on
+ * one thread. Encoding is thread safe.
+ */
+class AvroTupleConverter {
+	private static final Logger trace = Logger.getLogger(AvroTupleConverter.class.getCanonicalName());
+
+	private static final byte MAGIC_BYTE = 0;
+	private static final int PREFIX_SIZE = 5;
+	private static final Set<MetaType> SUPPORTED_TYPES = EnumSet.of(MetaType.RSTRING, MetaType.USTRING, MetaType.INT32,
+			MetaType.INT64, MetaType.FLOAT32, MetaType.FLOAT64, MetaType.BOOLEAN, MetaType.BLOB);
+	private static final Set<Schema.Type> ENCODED_TYPES = EnumSet.of(Schema.Type.STRING, Schema.Type.ENUM, Schema.Type.INT,
+			Schema.Type.LONG, Schema.Type.FLOAT, Schema.Type.DOUBLE, Schema.Type.BOOLEAN, Schema.Type.BYTES, Schema.Type.FIXED);
+	private static final Set<MetaType> NUMBER_ATTRIBUTE_TYPES = EnumSet.of(MetaType.INT32, MetaType.INT64, MetaType.FLOAT32,
+			MetaType.FLOAT64);
+	private static final Set<MetaType> STRING_ATTRIBUTE_TYPES = EnumSet.of(MetaType.RSTRING, MetaType.USTRING);
+	private static final Set<Schema.Type> NUMBER_FIELD_TYPES = EnumSet.of(Schema.Type.INT, Schema.Type.LONG, Schema.Type.FLOAT,
+			Schema.Type.DOUBLE);
+
+	private static class FieldMapping {
+		final int position;
+		// Schema of the field, without null for a nullable union
+		final Schema schema;
+		final int attributeIndex;
+		final MetaType attributeType;
+
+		FieldMapping(Schema.Field field, Attribute attribute) {
+			position = field.pos();
+			schema = getValueSchema(field.schema());
+			attributeIndex = attribute.getIndex();
+			attributeType = attribute.getType().getMetaType();
+		}
+	}
+
+	private static class EncodingBuffer {
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		BinaryEncoder encoder;
+	}
+
+	private final Schema schema;
+	private final List<FieldMapping> mappings = new ArrayList<FieldMapping>();
+
+	// Decoding
+	private File schemaDirectory;
+	private GenericDatumReader<GenericRecord> reader;
+	private final Map<Integer, GenericDatumReader<GenericRecord>> resolvingReaders = new HashMap<Integer, GenericDatumReader<GenericRecord>>();
+	private BinaryDecoder decoder;
+	private GenericRecord record;
+
+	// Encoding
+	private byte[] prefix;
+	private GenericDatumWriter<GenericRecord> writer;
+	private final Map<Integer, Object> defaultValues = new HashMap<Integer, Object>();
+	private final ThreadLocal<EncodingBuffer> encodingBuffers = new ThreadLocal<EncodingBuffer>() {
+		@Override
+		protected EncodingBuffer initialValue() {
+			return new EncodingBuffer();
+		}
+	};
+
+	private AvroTupleConverter(Schema schema, StreamSchema streamSchema, Set<String> excludedAttributes) {
+		this.schema = schema;
+		for (Schema.Field field : schema.getFields()) {
+			Attribute attribute = streamSchema.getAttribute(field.name());
+			if (attribute == null || excludedAttributes.contains(field.name()))
+				continue;
+			if (!SUPPORTED_TYPES.contains(attribute.getType().getMetaType()))
+				throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_MUST_BE_ONE_OF", field.name(), SUPPORTED_TYPES)); //$NON-NLS-1$
+			mappings.add(new FieldMapping(field, attribute));
+		}
+	}
+
+	static Schema parseSchema(String schemaFile) throws IOException {
+		return new Schema.Parser().parse(new File(schemaFile));
+	}
+
+	/**
+	 * @param schemaDirectory Directory of the writer schemas, or null if
+	 * messages are written with the reader schema and have no prefix.
+	 */
+	static AvroTupleConverter forDecoding(Schema readerSchema, StreamSchema streamSchema, Set<String> excludedAttributes,
+			File schemaDirectory) {
+		AvroTupleConverter converter = new AvroTupleConverter(readerSchema, streamSchema, excludedAttributes);
+		for (FieldMapping mapping : converter.mappings) {
+			if (!isDecodable(mapping.schema.getType(), mapping.attributeType))
+				throw converter.typeMismatch(mapping);
+		}
+		converter.schemaDirectory = schemaDirectory;
+		converter.reader = new GenericDatumReader<GenericRecord>(readerSchema);
+		return converter;
+	}
+
+	/**
+	 * @param schemaId Id of the writer schema prefixing the messages, or
+	 * null for messages without a prefix.
+	 */
+	static AvroTupleConverter forEncoding(Schema writerSchema, StreamSchema streamSchema, Set<String> excludedAttributes,
+			Integer schemaId) {
+		AvroTupleConverter converter = new AvroTupleConverter(writerSchema, streamSchema, excludedAttributes);
+		for (FieldMapping mapping : converter.mappings) {
+			if (!ENCODED_TYPES.contains(mapping.schema.getType()))
+				throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_MUST_BE_ONE_OF", //$NON-NLS-1$
+						writerSchema.getFields().get(mapping.position).name(), ENCODED_TYPES));
+			if (!isEncodable(mapping.attributeType, mapping.schema.getType()))
+				throw converter.typeMismatch(mapping);
+		}
+		// Fields without an attribute get their default value
+		for (Schema.Field field : writerSchema.getFields()) {
+			if (converter.hasMapping(field.pos()))
+				continue;
+			try {
+				converter.defaultValues.put(field.pos(), GenericData.get().getDefaultValue(field));
+			} catch (AvroRuntimeException e) {
+				throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_NOT_FOUND", field.name())); //$NON-NLS-1$
+			}
+		}
+		if (schemaId != null)
+			converter.prefix = ByteBuffer.allocate(PREFIX_SIZE).put(MAGIC_BYTE).putInt(schemaId).array();
+		converter.writer = new GenericDatumWriter<GenericRecord>(writerSchema);
+		return converter;
+	}
+
+	/*
+	 * Numbers and booleans are only decoded from fields of the same kind,
+	 * string and blob attributes take any field.
+	 */
+	private static boolean isDecodable(Schema.Type fieldType, MetaType attributeType) {
+		if (NUMBER_ATTRIBUTE_TYPES.contains(attributeType))
+			return NUMBER_FIELD_TYPES.contains(fieldType);
+		if (attributeType == MetaType.BOOLEAN)
+			return fieldType == Schema.Type.BOOLEAN;
+		return true;
+	}
+
+	private static boolean isEncodable(MetaType attributeType, Schema.Type fieldType) {
+		switch (fieldType) {
+		case STRING:
+		case ENUM:
+			return STRING_ATTRIBUTE_TYPES.contains(attributeType);
+		case INT:
+		case LONG:
+		case FLOAT:
+		case DOUBLE:
+			return NUMBER_ATTRIBUTE_TYPES.contains(attributeType);
+		case BOOLEAN:
+			return attributeType == MetaType.BOOLEAN;
+		case BYTES:
+		case FIXED:
+			return attributeType == MetaType.BLOB || STRING_ATTRIBUTE_TYPES.contains(attributeType);
+		default:
+			return false;
+		}
+	}
+
+	private IllegalArgumentException typeMismatch(FieldMapping mapping) {
+		return new IllegalArgumentException(Messages.getString("AVRO_FIELD_TYPE_MISMATCH", //$NON-NLS-1$
+				schema.getFields().get(mapping.position).name(), mapping.attributeType, mapping.schema.getType()));
+	}
+
+	private boolean hasMapping(int position) {
+		for (FieldMapping mapping : mappings) {
+			if (mapping.position == position)
+				return true;
+		}
+		return false;
+	}
+
+	private static Schema getValueSchema(Schema schema) {
+		if (schema.getType() != Schema.Type.UNION || schema.getTypes().size() != 2)
+			return schema;
+		for (Schema type : schema.getTypes()) {
+			if (type.getType() != Schema.Type.NULL)
+				return type;
+		}
+		return schema;
+	}
+
+	/**
+	 * Set the attributes of the tuple from the fields of the message.
+	 */
+	void decode(byte[] message, OutputTuple tuple) throws IOException {
+		GenericDatumReader<GenericRecord> datumReader = reader;
+		int offset = 0;
+		if (schemaDirectory != null) {
+			if (message.length < PREFIX_SIZE || message[0] != MAGIC_BYTE)
+				throw new IOException("Message does not start with a schema id."); //$NON-NLS-1$
+			datumReader = getResolvingReader(ByteBuffer.wrap(message, 1, 4).getInt());
+			offset = PREFIX_SIZE;
+		}
+		decoder = DecoderFactory.get().binaryDecoder(message, offset, message.length - offset, decoder);
+		record = datumReader.read(record, decoder);
+
+		for (FieldMapping mapping : mappings) {
+			Object value = record.get(mapping.position);
+			if (value == null)
+				continue;
+			switch (mapping.attributeType) {
+			case INT32:
+				tuple.setInt(mapping.attributeIndex, ((Number) value).intValue());
+				break;
+			case INT64:
+				tuple.setLong(mapping.attributeIndex, ((Number) value).longValue());
+				break;
+			case FLOAT32:
+				tuple.setFloat(mapping.attributeIndex, ((Number) value).floatValue());
+				break;
+			case FLOAT64:
+				tuple.setDouble(mapping.attributeIndex, ((Number) value).doubleValue());
+				break;
+			case BOOLEAN:
+				tuple.setBoolean(mapping.attributeIndex, (Boolean) value);
+				break;
+			case BLOB:
+				tuple.setBlob(mapping.attributeIndex, ValueFactory.newBlob(toBytes(value)));
+				break;
+			default:
+				// Records, arrays and maps as their JSON representation
+				tuple.setString(mapping.attributeIndex, value.toString());
+			}
+		}
+	}
+
+	private GenericDatumReader<GenericRecord> getResolvingReader(int schemaId) throws IOException {
+		GenericDatumReader<GenericRecord> resolvingReader = resolvingReaders.get(schemaId);
+		if (resolvingReader == null) {
+			File schemaFile = new File(schemaDirectory, schemaId + ".avsc"); //$NON-NLS-1$
+			trace.log(TraceLevel.INFO, "Reading writer schema " + schemaId + " from " + schemaFile); //$NON-NLS-1$ //$NON-NLS-2$
+			resolvingReader = new GenericDatumReader<GenericRecord>(parseSchema(schemaFile.getPath()), schema);
+			resolvingReaders.put(schemaId, resolvingReader);
+		}
+		return resolvingReader;
+	}
+
+	private static byte[] toBytes(Object value) {
+		if (value instanceof ByteBuffer) {
+			ByteBuffer buffer = ((ByteBuffer) value).duplicate();
+			byte[] bytes = new byte[buffer.remaining()];
+			buffer.get(bytes);
+			return bytes;
+		}
+		if (value instanceof GenericFixed)
+			return ((GenericFixed) value).bytes();
+		return value.toString().getBytes(AttributeHelper.CS);
+	}
+
+	/**
+	 * Encode the attributes of the tuple as a message.
+	 */
+	byte[] encode(Tuple tuple) throws IOException {
+		GenericRecord record = new GenericData.Record(schema);
+		for (Map.Entry<Integer, Object> defaultValue : defaultValues.entrySet())
+			record.put(defaultValue.getKey(), defaultValue.getValue());
+		for (FieldMapping mapping : mappings)
+			record.put(mapping.position, getFieldValue(tuple, mapping));
+
+		EncodingBuffer buffer = encodingBuffers.get();
+		buffer.out.reset();
+		if (prefix != null)
+			buffer.out.write(prefix);
+		buffer.encoder = EncoderFactory.get().binaryEncoder(buffer.out, buffer.encoder);
+		writer.write(record, buffer.encoder);
+		buffer.encoder.flush();
+		return buffer.out.toByteArray();
+	}
+
+	private static Object getFieldValue(Tuple tuple, FieldMapping mapping) {
+		int index = mapping.attributeIndex;
+		switch (mapping.schema.getType()) {
+		case STRING:
+			return tuple.getString(index);
+		case ENUM:
+			return new GenericData.EnumSymbol(mapping.schema, tuple.getString(index));
+		case INT:
+			return ((Number) tuple.getObject(index)).intValue();
+		case LONG:
+			return ((Number) tuple.getObject(index)).longValue();
+		case FLOAT:
+			return ((Number) tuple.getObject(index)).floatValue();
+		case DOUBLE:
+			return ((Number) tuple.getObject(index)).doubleValue();
+		case BOOLEAN:
+			return tuple.getBoolean(index);
+		case BYTES:
+			return ByteBuffer.wrap(getBytes(tuple, mapping));
+		default:
+			return new GenericData.Fixed(mapping.schema, getBytes(tuple, mapping));
+		}
+	}
+
+	private static byte[] getBytes(Tuple tuple, FieldMapping mapping) {
+		if (mapping.attributeType != MetaType.BLOB)
+			return tuple.getString(mapping.attributeIndex).getBytes(AttributeHelper.CS);
+		Blob blob = tuple.getBlob(mapping.attributeIndex);
+		ByteBuffer buffer = blob.getByteBuffer();
+		byte[] bytes = new byte[(int) blob.getLength()];
+		buffer.get(bytes);
+		return bytes;
+	}
+}
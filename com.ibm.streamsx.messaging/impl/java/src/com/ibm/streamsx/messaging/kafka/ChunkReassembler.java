@@ -0,0 +1,218 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import org.apache.kafka.common.TopicPartition;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+
+/*
+ * Reassembles the messages split by MessageChunker. Chunks are held until
+ * all the chunks of their message are received, for at most timeout
+ * milliseconds, and within maxBytes bytes for all the messages; the oldest
+ * messages are discarded first. The later chunks of a discarded message are
+ * dropped, for the last MAX_DISCARDED discarded messages. Records without a
+ * chunk header are passed through unchanged. Shared by the consumer clients of an operator, which
+ * read distinct partitions.
+ */
+class ChunkReassembler {
+	private static final Logger trace = Logger.getLogger(ChunkReassembler.class.getCanonicalName());
+
+	private static final int MAX_DISCARDED = 1024;
+
+	static class Message {
+		final byte[] key;
+		final byte[] value;
+
+		Message(byte[] key, byte[] value) {
+			this.key = key;
+			this.value = value;
+		}
+	}
+
+	private static class ChunkedMessage {
+		final TopicPartition partition;
+		final long firstOffset;
+		final long created = System.currentTimeMillis();
+		final byte[][] chunks;
+		final int length;
+		int received = 0;
+		long bytes = 0;
+
+		ChunkedMessage(TopicPartition partition, long firstOffset, int chunkCount, int length) {
+			this.partition = partition;
+			this.firstOffset = firstOffset;
+			this.chunks = new byte[chunkCount][];
+			this.length = length;
+		}
+	}
+
+	// Keyed by the partition and message id, oldest first
+	private final LinkedHashMap<List<Object>, ChunkedMessage> pending = new LinkedHashMap<List<Object>, ChunkedMessage>();
+	// Ids of the messages discarded last, oldest first
+	@SuppressWarnings("serial")
+	private final LinkedHashMap<List<Object>, TopicPartition> discarded = new LinkedHashMap<List<Object>, TopicPartition>() {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<List<Object>, TopicPartition> eldest) {
+			return size() > MAX_DISCARDED;
+		}
+	};
+	private final long timeout;
+	private final long maxBytes;
+	private long bytes = 0;
+	private Metric nIncompleteMessages;
+
+	ChunkReassembler(long timeout, long maxBytes) {
+		this.timeout = timeout;
+		this.maxBytes = maxBytes;
+	}
+
+	void setIncompleteMessagesMetric(Metric nIncompleteMessages) {
+		this.nIncompleteMessages = nIncompleteMessages;
+	}
+
+	/**
+	 * Add a record.
+	 * @return The complete message, or null if chunks of its message are
+	 * still missing or the message was discarded.
+	 */
+	synchronized Message add(TopicPartition partition, long offset, byte[] key, byte[] value) {
+		if (value == null || value.length < MessageChunker.HEADER_SIZE)
+			return new Message(key, value);
+		ByteBuffer header = ByteBuffer.wrap(value);
+		if (header.getInt() != MessageChunker.MAGIC)
+			return new Message(key, value);
+		boolean noKey = (header.get() & MessageChunker.FLAG_NO_KEY) != 0;
+		long messageId = header.getLong();
+		int index = header.getInt();
+		int chunkCount = header.getInt();
+		int length = header.getInt();
+		if (chunkCount < 1 || index < 0 || index >= chunkCount || length < 0)
+			return new Message(key, value);
+		if (noKey)
+			key = null;
+		if (chunkCount == 1)
+			return new Message(key, Arrays.copyOfRange(value, MessageChunker.HEADER_SIZE, value.length));
+
+		expire();
+		List<Object> id = Arrays.<Object>asList(partition, messageId);
+		if (discarded.containsKey(id))
+			return null;
+		if (length > maxBytes) {
+			trace.log(TraceLevel.WARN, "Discarding message of " + length + " bytes from partition " + partition //$NON-NLS-1$ //$NON-NLS-2$
+					+ " at offset " + offset + ", it is larger than the reassembly buffer."); //$NON-NLS-1$ //$NON-NLS-2$
+			discarded.put(id, partition);
+			incrementIncompleteMessages();
+			return null;
+		}
+		ChunkedMessage message = pending.get(id);
+		if (message == null) {
+			message = new ChunkedMessage(partition, offset, chunkCount, length);
+			pending.put(id, message);
+		}
+		if (index >= message.chunks.length || message.chunks[index] != null)
+			return null;
+		message.chunks[index] = Arrays.copyOfRange(value, MessageChunker.HEADER_SIZE, value.length);
+		message.received++;
+		message.bytes += message.chunks[index].length;
+		bytes += message.chunks[index].length;
+
+		if (message.received == message.chunks.length) {
+			remove(id);
+			if (message.bytes != message.length) {
+				trace.log(TraceLevel.WARN, "Discarding message from partition " + partition + " at offset " + message.firstOffset //$NON-NLS-1$ //$NON-NLS-2$
+						+ ", its chunks hold " + message.bytes + " bytes instead of " + message.length + "."); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+				discarded.put(id, partition);
+				incrementIncompleteMessages();
+				return null;
+			}
+			return new Message(key, assemble(message));
+		}
+		while (bytes > maxBytes && !pending.isEmpty()) {
+			Map.Entry<List<Object>, ChunkedMessage> oldest = pending.entrySet().iterator().next();
+			trace.log(TraceLevel.WARN, "Discarding incomplete message from partition " + oldest.getValue().partition //$NON-NLS-1$
+					+ " at offset " + oldest.getValue().firstOffset + ", the reassembly buffer is full."); //$NON-NLS-1$ //$NON-NLS-2$
+			remove(oldest.getKey());
+			discarded.put(oldest.getKey(), oldest.getValue().partition);
+			incrementIncompleteMessages();
+		}
+		return null;
+	}
+
+	private static byte[] assemble(ChunkedMessage message) {
+		ByteBuffer value = ByteBuffer.allocate(message.length);
+		for (byte[] chunk : message.chunks)
+			value.put(chunk);
+		return value.array();
+	}
+
+	private void remove(List<Object> id) {
+		bytes -= pending.remove(id).bytes;
+	}
+
+	private void expire() {
+		long now = System.currentTimeMillis();
+		Iterator<Map.Entry<List<Object>, ChunkedMessage>> messages = pending.entrySet().iterator();
+		while (messages.hasNext()) {
+			Map.Entry<List<Object>, ChunkedMessage> entry = messages.next();
+			ChunkedMessage message = entry.getValue();
+			if (now - message.created < timeout)
+				break;
+			trace.log(TraceLevel.WARN, "Discarding incomplete message from partition " + message.partition //$NON-NLS-1$
+					+ " at offset " + message.firstOffset + ", its chunks timed out."); //$NON-NLS-1$ //$NON-NLS-2$
+			bytes -= message.bytes;
+			messages.remove();
+			discarded.put(entry.getKey(), message.partition);
+			incrementIncompleteMessages();
+		}
+	}
+
+	private void incrementIncompleteMessages() {
+		if (nIncompleteMessages != null)
+			nIncompleteMessages.increment();
+	}
+
+	/**
+	 * Offset of the first chunk held for the partition. Consuming must
+	 * resume there for the message to be reassembled again.
+	 * @return The offset, or null if no chunk of the partition is held.
+	 */
+	synchronized Long getFirstOffset(TopicPartition partition) {
+		expire();
+		Long firstOffset = null;
+		for (ChunkedMessage message : pending.values()) {
+			if (message.partition.equals(partition) && (firstOffset == null || message.firstOffset < firstOffset))
+				firstOffset = message.firstOffset;
+		}
+		return firstOffset;
+	}
+
+	/**
+	 * Discard the chunks held for the partitions, which are read again
+	 * from an earlier offset or no longer read. Their discarded messages
+	 * may then be reassembled again.
+	 */
+	synchronized void discard(Collection<TopicPartition> partitions) {
+		discarded.values().removeAll(partitions);
+		Iterator<ChunkedMessage> messages = pending.values().iterator();
+		while (messages.hasNext()) {
+			ChunkedMessage message = messages.next();
+			if (partitions.contains(message.partition)) {
+				bytes -= message.bytes;
+				messages.remove();
+			}
+		}
+	}
+}
@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.metrics.Metric.Kind;
+import com.ibm.streams.operator.metrics.OperatorMetrics;
+
+/*
+ * Histogram of durations as custom metrics, one counter per bucket named
+ * <name>:<=<bound>ms and a last one for longer durations, plus gauges for
+ * the last and the maximum duration. Metrics are scalar, so the buckets
+ * are fixed.
+ */
+class DurationHistogram {
+	private static final long[] BOUNDS = { 100, 1000, 10000, 60000 };
+
+	private final Metric[] buckets = new Metric[BOUNDS.length + 1];
+	private final Metric last;
+	private final Metric max;
+
+	DurationHistogram(OperatorMetrics metrics, String name, String description) {
+		for (int i = 0; i < BOUNDS.length; i++)
+			buckets[i] = metrics.createCustomMetric(name + ":<=" + BOUNDS[i] + "ms", //$NON-NLS-1$ //$NON-NLS-2$
+					"Number of " + description + " that took up to " + BOUNDS[i] + " milliseconds.", Kind.COUNTER); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		buckets[BOUNDS.length] = metrics.createCustomMetric(name + ":>" + BOUNDS[BOUNDS.length - 1] + "ms", //$NON-NLS-1$ //$NON-NLS-2$
+				"Number of " + description + " that took more than " + BOUNDS[BOUNDS.length - 1] + " milliseconds.", Kind.COUNTER); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		last = metrics.createCustomMetric(name + ":last", "Duration of the last of the " + description + " in milliseconds.", Kind.GAUGE); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		max = metrics.createCustomMetric(name + ":max", "Maximum duration of the " + description + " in milliseconds.", Kind.GAUGE); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	synchronized void record(long millis) {
+		int bucket = 0;
+		while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+			bucket++;
+		buckets[bucket].increment();
+		last.setValue(millis);
+		if (millis > max.getValue())
+			max.setValue(millis);
+	}
+}
@@ -4,9 +4,14 @@
  *******************************************************************************/
 package com.ibm.streamsx.messaging.kafka;
 
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Properties;
 import java.util.logging.Logger;
 
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.MetricName;
+
 public abstract class KafkaBaseClient {
 	AttributeHelper topicAH;
 	AttributeHelper keyAH;
@@ -25,4 +30,39 @@ public abstract class KafkaBaseClient {
 	
 	abstract void shutdown();
 	
+	/*
+	 * Client wide Kafka metric by name, ignoring the per topic
+	 * metrics of the same name.
+	 */
+	static Metric findMetric(Map<MetricName, ? extends Metric> metrics, String name) {
+		for (Map.Entry<MetricName, ? extends Metric> metric : metrics.entrySet()){
+			MetricName metricName = metric.getKey();
+			if (metricName.name().equals(name) && !metricName.tags().containsKey("topic")) //$NON-NLS-1$
+				return metric.getValue();
+		}
+		return null;
+	}
+	
+	/*
+	 * Current values of the named client wide metrics. Handles are resolved
+	 * once and kept in resolvedMetrics. Metrics without a value yet are left out.
+	 */
+	static Map<String, Double> getMetricValues(Map<MetricName, ? extends Metric> metrics,
+			String[] names, Map<String, Metric> resolvedMetrics) {
+		Map<String, Double> values = new HashMap<String, Double>();
+		for (String name : names) {
+			Metric metric = resolvedMetrics.get(name);
+			if (metric == null) {
+				metric = findMetric(metrics, name);
+				if (metric == null)
+					continue;
+				resolvedMetrics.put(name, metric);
+			}
+			double value = metric.value();
+			if (!Double.isNaN(value) && !Double.isInfinite(value))
+				values.put(name, value);
+		}
+		return values;
+	}
+	
 }
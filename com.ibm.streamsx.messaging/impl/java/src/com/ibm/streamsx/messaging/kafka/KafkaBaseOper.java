@@ -19,6 +19,8 @@ import java.util.logging.Logger;
 
 import javax.security.auth.login.Configuration;
 
+import org.apache.avro.Schema;
+
 import com.ibm.streams.operator.AbstractOperator;
 import com.ibm.streams.operator.OperatorContext;
 import com.ibm.streams.operator.StreamSchema;
@@ -50,8 +52,14 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 	private List<String> appConfigPropName = new ArrayList<String>();
 	private String jaasFile = null;
 	private String jaasFilePropName = "jaasFile"; //$NON-NLS-1$
+	private String avroSchemaFile = null;
+	// Schema of Avro messages, which map to attributes in place of the message attribute
+	protected Schema avroSchema;
 	private static final Logger trace = Logger.getLogger(KafkaBaseOper.class
 			.getCanonicalName());
+	
+	// Seconds between copies of the Kafka client metrics into custom metrics
+	static final long KAFKA_METRICS_PERIOD = 5;
 
 	/*
 	 * Check that either appConfig, propertiesFile, or kafkaProperty parameter specified. 
@@ -70,6 +78,7 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 		}
 		
 		checker.checkDependentParameters("jaasFilePropName", "appConfigName"); //$NON-NLS-1$ //$NON-NLS-2$
+		checker.checkExcludedParameters("avroSchemaFile", "messageAttribute"); //$NON-NLS-1$ //$NON-NLS-2$
 
 	}
 	
@@ -101,6 +110,9 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 
 	
 	protected static void checkForMessageAttribute(OperatorContext operContext, StreamSchema operSchema) throws Exception {
+		// Avro messages map to the attributes named like their fields
+		if (operContext.getParameterNames().contains("avroSchemaFile")) //$NON-NLS-1$
+			return;
 		List<String> messageAttrParameter = operContext.getParameterValues("messageAttribute"); //$NON-NLS-1$
 		String messageAttrString = "message"; //$NON-NLS-1$
 		if (!messageAttrParameter.isEmpty()){
@@ -233,7 +245,10 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 		supportedTypes.add(MetaType.BLOB);
 
 		keyAH.initialize(ss, false, supportedTypes);
-		messageAH.initialize(ss, true, supportedTypes);
+		if (avroSchemaFile == null)
+			messageAH.initialize(ss, true, supportedTypes);
+		else
+			avroSchema = AvroTupleConverter.parseSchema(getAbsoluteFilePath(avroSchemaFile));
 
 		// blobs are not supported for topics
 		supportedTypes.remove(MetaType.BLOB);
@@ -241,6 +256,18 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 		
 	}
 
+	/*
+	 * Attributes the fields of Avro messages do not map to.
+	 */
+	protected Set<String> getAvroExcludedAttributes() {
+		Set<String> excludedAttributes = new HashSet<String>();
+		if (topicAH.isAvailable())
+			excludedAttributes.add(topicAH.getName());
+		if (keyAH.isAvailable())
+			excludedAttributes.add(keyAH.getName());
+		return excludedAttributes;
+	}
+
 	@Parameter(cardinality = -1, optional = true, description = "Specify a Kafka property \\\"key=value\\\" form. "
 			+ "This will override any property specified in the properties file. "
 			+ "The hierarchy of properties goes: properties from appConfig beat out kafkaProperty parameter properties, which beat out properties from the propertiesFile. ")
@@ -342,8 +369,16 @@ public abstract class KafkaBaseOper extends AbstractOperator {
 		keyAH.setName(value);
 	}
 
+	@Parameter(optional = true, description = "Avro schema file of the messages. If specified, messages are Avro binary records "
+			+ "whose fields map to the attributes of the same name, in place of the message attribute. "
+			+ "The SPL types supported for the attributes are rstring, ustring, int32, int64, float32, float64, boolean and blob. "
+			+ "If a relative path is specified, the path is relative to the application directory. Cannot be used with messageAttribute.")
+	public void setAvroSchemaFile(String value) {
+		avroSchemaFile = value;
+	}
+
 	@Override
-	public void shutdown() throws Exception {
+	public void shutdown() throws Exception {
 
         OperatorContext context = getOperatorContext();
         trace.log(TraceLevel.ALL, "Operator " + context.getName() + " shutting down in PE: " + context.getPE().getPEId() + " in Job: " + context.getPE().getJobId() ); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
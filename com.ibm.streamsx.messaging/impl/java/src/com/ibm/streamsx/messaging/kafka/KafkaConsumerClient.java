@@ -5,23 +5,33 @@
 package com.ibm.streamsx.messaging.kafka;
 
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.apache.kafka.clients.consumer.ConsumerRebalanceListener;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.InvalidOffsetException;
 import org.apache.kafka.clients.consumer.KafkaConsumer;
-import org.apache.kafka.common.MetricName;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
+import org.apache.kafka.common.Metric;
+import org.apache.kafka.common.PartitionInfo;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
-import org.apache.kafka.common.metrics.KafkaMetric;
 
 import com.ibm.streams.operator.OutputTuple;
 import com.ibm.streams.operator.StreamingOutput;
@@ -36,9 +46,105 @@ public abstract class KafkaConsumerClient<K,V> extends KafkaBaseClient {
 	protected KafkaConsumer<K,V> consumer;
 	private List<Integer> partitions;
 	
+	/*
+	 * Static assignment of topic partitions: when assignmentCount is positive
+	 * and no partitions are specified, this client reads the partitions whose
+	 * slot matches assignmentIndex. idle is set when no partition is left.
+	 */
+	private int assignmentIndex = 0;
+	private int assignmentCount = 0;
+	private boolean idle = false;
+	
 	private final AtomicBoolean shutdown = new AtomicBoolean(false);
 
-	StreamingOutput<OutputTuple> streamingOutput;
+	OutputRouter outputRouter;
+	
+	/*
+	 * Polling pipeline state. When started, a dedicated poll thread owns the
+	 * KafkaConsumer and hands record batches to the submitting thread through
+	 * recordsBuffer. pendingSeek is a reset requested by the consistent region
+	 * that the poll thread has not applied yet.
+	 */
+	private ArrayBlockingQueue<ConsumerRecords<K,V>> recordsBuffer;
+	private Thread pollThread;
+	private final AtomicReference<Exception> pollException = new AtomicReference<Exception>();
+	private Map<TopicPartition, Long> pendingSeek;
+	
+	/*
+	 * Offsets requested to be committed to the group, guarded by this. They
+	 * are committed asynchronously by the thread polling the consumer, which
+	 * also runs commitCallback with the result. A newer request replaces one
+	 * that is not committed yet.
+	 */
+	private Map<TopicPartition, OffsetAndMetadata> pendingCommit;
+	private OffsetCommitCallback commitCallback;
+	
+	/*
+	 * Flow control of the thread polling the consumer. Fetching is paused once
+	 * pauseThreshold batches are buffered and resumed when the submitter has
+	 * taken them down to resumeThreshold, and while the throttle, shared by
+	 * the clients of the operator, is exhausted. Fetching is also paused while
+	 * a polled batch waits for room in the buffer. The consumer keeps polling
+	 * while paused to remain in the group, it never blocks on the buffer.
+	 * bufferFull and paused are only accessed by the polling thread.
+	 */
+	private int pauseThreshold = 0;
+	private int resumeThreshold = 0;
+	private Throttle throttle;
+	private boolean bufferFull = false;
+	private boolean paused = false;
+	
+	/*
+	 * Offset state, guarded by this. submittedOffsets holds the next offset to
+	 * submit for each partition assigned to this client. resetOffsets holds the
+	 * offsets of the last reset for partitions that were not assigned to this
+	 * client at the time; they are applied if the partitions get assigned before
+	 * the next checkpoint. polledOffsets holds the offset following the last
+	 * polled record of each assigned partition, which is ahead of the
+	 * submitted one while polled records are buffered. snapshotOffsets, shared
+	 * by the clients of the operator, holds the end offsets of the bootstrap
+	 * snapshot for partitions not assigned to any client yet; unlike
+	 * resetOffsets they are kept until the partitions get assigned.
+	 */
+	private final Set<TopicPartition> assignedPartitions = new HashSet<TopicPartition>();
+	private final Map<TopicPartition, Long> submittedOffsets = new HashMap<TopicPartition, Long>();
+	private final Map<TopicPartition, Long> polledOffsets = new HashMap<TopicPartition, Long>();
+	private final Map<TopicPartition, Long> resetOffsets = new HashMap<TopicPartition, Long>();
+	private Map<TopicPartition, Long> snapshotOffsets;
+	
+	/*
+	 * Reassembly of chunked messages, shared by the clients of the operator.
+	 * The offsets of a partition do not advance past the first chunk of a
+	 * message that is not complete yet, so that a reset reads it again.
+	 */
+	private ChunkReassembler reassembler;
+	
+	/*
+	 * Decodes Avro messages into the attributes of the output tuple, in
+	 * place of the message attribute. Used by the processing thread only.
+	 */
+	private AvroTupleConverter avroConverter;
+	
+	// Records not passing the filter are not submitted, but their offsets advance
+	private RecordFilter filter;
+	
+	/*
+	 * Bounded reading, guarded by this. The client seeks its partitions to
+	 * the start offsets of offsetRange when initialized. endOffsets holds
+	 * the offset following the last one to submit for each partition, and
+	 * unfinishedPartitions the partitions that have not reached it yet.
+	 */
+	private OffsetRange offsetRange;
+	private final Map<TopicPartition, Long> endOffsets = new HashMap<TopicPartition, Long>();
+	private final Set<TopicPartition> unfinishedPartitions = new HashSet<TopicPartition>();
+	
+	/*
+	 * Kafka metrics of the consumer, resolved once so that reading them does
+	 * not scan the consumer's metrics map.
+	 */
+	static final String[] FETCH_METRIC_NAMES = { "records-lag-max", "fetch-rate", "bytes-consumed-rate", "fetch-latency-avg" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	private Metric connectionCountMetric;
+	private final Map<String, Metric> fetchMetrics = new HashMap<String, Metric>();
 	
 	public KafkaConsumerClient(AttributeHelper topicAH, AttributeHelper keyAH, AttributeHelper messageAH, List<Integer> partitions, Properties props) {
 		super(topicAH,keyAH,messageAH,props);
@@ -46,16 +152,49 @@ public abstract class KafkaConsumerClient<K,V> extends KafkaBaseClient {
 		this.partitions = partitions;
 	}
 	
-
+	/**
+	 * Read a stable share of the partitions of the topics instead of
+	 * subscribing to them, for example one per parallel channel.
+	 * Must be called before {@link #init(OutputRouter, List)}.
+	 * @param index Index of this client, from 0 to count - 1.
+	 * @param count Number of clients sharing the partitions.
+	 */
+	protected void setPartitionAssignment(int index, int count) {
+		assignmentIndex = index;
+		assignmentCount = count;
+	}
+	
+	/**
+	 * Read the partitions from, and up to, the offsets of the range.
+	 * The partitions must be assigned rather than subscribed to.
+	 * Must be called before {@link #init(OutputRouter, List)}.
+	 */
+	protected void setOffsetRange(OffsetRange offsetRange) {
+		this.offsetRange = offsetRange;
+	}
 	
 	protected void init(
-			StreamingOutput<OutputTuple> so, List<String> topics){
-		streamingOutput = so;
+			OutputRouter router, List<String> topics){
+		outputRouter = router;
 		
-		if (partitions == null || partitions.isEmpty()){
+		if ((partitions == null || partitions.isEmpty()) && assignmentCount > 0){
+			assignPartitions(topics);
+		} else if (partitions == null || partitions.isEmpty()){
 			//subscribe to the topics
 			trace.log(TraceLevel.INFO, "Subscribing to topics: " + topics.toString()); //$NON-NLS-1$
-			consumer.subscribe(topics); 
+			consumer.subscribe(topics, new ConsumerRebalanceListener() {
+
+				@Override
+				public void onPartitionsRevoked(Collection<TopicPartition> partitions) {
+					trace.log(TraceLevel.INFO, "Partitions revoked: " + partitions.toString()); //$NON-NLS-1$
+				}
+
+				@Override
+				public void onPartitionsAssigned(Collection<TopicPartition> partitions) {
+					trace.log(TraceLevel.INFO, "Partitions assigned: " + partitions.toString()); //$NON-NLS-1$
+					resumeAssignedPartitions(partitions);
+				}
+			}); 
 		} else {
 			//subscribe to specific partitions
 			List<TopicPartition> partitionList = new ArrayList<TopicPartition>();
@@ -64,9 +203,12 @@ public abstract class KafkaConsumerClient<K,V> extends KafkaBaseClient {
 				partitionList.add(tPartition);
 			}
 			trace.log(TraceLevel.INFO, "Subscribing to partitions: " + partitionList.toString() + " in topic: " + topics.get(0)); //$NON-NLS-1$ //$NON-NLS-2$
-			consumer.assign(partitionList);
+			assign(partitionList);
 		}	
 		
+		if (offsetRange != null)
+			seekToOffsetRange();
+		
 //		processThread = tf.newThread(new Runnable() {
 //
 //			@Override
@@ -85,78 +227,553 @@ public abstract class KafkaConsumerClient<K,V> extends KafkaBaseClient {
 //		processThread.start();
 	}
 	
+	/*
+	 * Partition p of the t-th topic goes to slot (p + t) % assignmentCount,
+	 * which keeps the assignment balanced across topics and stable when
+	 * partitions are added.
+	 */
+	private void assignPartitions(List<String> topics) {
+		List<TopicPartition> partitionList = new ArrayList<TopicPartition>();
+		for (int topicIndex = 0; topicIndex < topics.size(); topicIndex++) {
+			String topic = topics.get(topicIndex);
+			List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+			if (partitionInfos == null) {
+				trace.log(TraceLevel.WARN, "No partitions found for topic: " + topic); //$NON-NLS-1$
+				continue;
+			}
+			for (PartitionInfo partitionInfo : partitionInfos) {
+				if ((partitionInfo.partition() + topicIndex) % assignmentCount == assignmentIndex)
+					partitionList.add(new TopicPartition(topic, partitionInfo.partition()));
+			}
+		}
+		
+		if (partitionList.isEmpty()) {
+			trace.log(TraceLevel.WARN, "No partitions are assigned to consumer " + assignmentIndex + " of " + assignmentCount //$NON-NLS-1$ //$NON-NLS-2$
+					+ " for topics: " + topics.toString() + ". It will not receive any messages."); //$NON-NLS-1$ //$NON-NLS-2$
+			idle = true;
+			return;
+		}
+		trace.log(TraceLevel.INFO, "Assigning partitions: " + partitionList.toString() + " to consumer " + assignmentIndex + " of " + assignmentCount); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		assign(partitionList);
+	}
+	
+	private synchronized void assign(List<TopicPartition> partitionList) {
+		assignedPartitions.addAll(partitionList);
+		consumer.assign(partitionList);
+	}
+	
+	/*
+	 * Without a start offset, a partition starts at the committed offset.
+	 * An end offset at the end of the partition is the position after
+	 * seeking to the end, as Kafka 0.10.0 has no endOffsets().
+	 */
+	private synchronized void seekToOffsetRange() {
+		for (TopicPartition partition : assignedPartitions) {
+			Collection<TopicPartition> partitionSet = Collections.singleton(partition);
+			if (offsetRange.hasStartOffsets()) {
+				long startOffset = offsetRange.getStartOffset(partition.partition());
+				if (startOffset == OffsetRange.BEGINNING)
+					consumer.seekToBeginning(partitionSet);
+				else if (startOffset == OffsetRange.END)
+					consumer.seekToEnd(partitionSet);
+				else
+					consumer.seek(partition, startOffset);
+			}
+			long startOffset = consumer.position(partition);
+			if (!offsetRange.isBounded()) {
+				trace.log(TraceLevel.INFO, "Reading partition: " + partition + " from offset: " + startOffset); //$NON-NLS-1$ //$NON-NLS-2$
+				continue;
+			}
+			
+			long endOffset = offsetRange.getEndOffset(partition.partition());
+			if (endOffset == OffsetRange.END) {
+				consumer.seekToEnd(partitionSet);
+				endOffset = consumer.position(partition);
+				consumer.seek(partition, startOffset);
+			}
+			trace.log(TraceLevel.INFO, "Reading partition: " + partition + " from offset: " + startOffset //$NON-NLS-1$ //$NON-NLS-2$
+					+ " up to offset: " + endOffset); //$NON-NLS-1$
+			endOffsets.put(partition, endOffset);
+			if (startOffset < endOffset)
+				unfinishedPartitions.add(partition);
+		}
+	}
+	
+	/**
+	 * @return true if the client reads up to end offsets and
+	 * all its partitions have reached them.
+	 */
+	protected synchronized boolean isFinished() {
+		return offsetRange != null && offsetRange.isBounded() && unfinishedPartitions.isEmpty();
+	}
+	
+	private synchronized Map<TopicPartition, Long> getUnfinishedEndOffsets() {
+		Map<TopicPartition, Long> unfinishedEndOffsets = new HashMap<TopicPartition, Long>();
+		for (TopicPartition partition : unfinishedPartitions)
+			unfinishedEndOffsets.put(partition, endOffsets.get(partition));
+		return unfinishedEndOffsets;
+	}
+	
+	/*
+	 * Called from poll() when the group assigns partitions to this client.
+	 * The consumer forgets the positions of all partitions on a rebalance.
+	 * Partitions this client keeps continue after the last polled record, as
+	 * the records polled up to it may still be buffered for submission.
+	 * Others start from the last reset if there was one since the last
+	 * checkpoint, then from the end of the bootstrap snapshot if they have not
+	 * been assigned since, otherwise from the group's committed offset.
+	 */
+	private synchronized void resumeAssignedPartitions(Collection<TopicPartition> partitions) {
+		if (reassembler != null) {
+			Set<TopicPartition> revokedPartitions = new HashSet<TopicPartition>(assignedPartitions);
+			revokedPartitions.removeAll(partitions);
+			reassembler.discard(revokedPartitions);
+		}
+		assignedPartitions.clear();
+		assignedPartitions.addAll(partitions);
+		submittedOffsets.keySet().retainAll(assignedPartitions);
+		polledOffsets.keySet().retainAll(assignedPartitions);
+		for (TopicPartition partition : partitions) {
+			// The snapshot offset only applies to the first assignment
+			Long snapshotOffset = snapshotOffsets != null ? snapshotOffsets.remove(partition) : null;
+			Long offset = polledOffsets.get(partition);
+			if (offset != null) {
+				trace.log(TraceLevel.INFO, "Continuing partition: " + partition + " at offset: " + offset); //$NON-NLS-1$ //$NON-NLS-2$
+				consumer.seek(partition, offset);
+				continue;
+			}
+			offset = resetOffsets.remove(partition);
+			if (offset != null) {
+				trace.log(TraceLevel.INFO, "Resuming partition: " + partition + " at offset: " + offset); //$NON-NLS-1$ //$NON-NLS-2$
+				consumer.seek(partition, offset);
+			} else if (snapshotOffset != null) {
+				offset = snapshotOffset;
+				trace.log(TraceLevel.INFO, "Starting partition: " + partition + " after the snapshot at offset: " + offset); //$NON-NLS-1$ //$NON-NLS-2$
+				consumer.seek(partition, offset);
+			} else {
+				offset = consumer.position(partition);
+			}
+			submittedOffsets.put(partition, offset);
+			polledOffsets.put(partition, offset);
+		}
+		// Partitions are assigned unpaused, the poll thread may be holding back
+		if (paused)
+			consumer.pause(partitions);
+	}
+	
+	/*
+	 * A consumer without partitions must not poll, it just waits.
+	 */
+	private ConsumerRecords<K, V> pollConsumer(long consumerPollTimeout) throws InterruptedException {
+		if (idle) {
+			Thread.sleep(consumerPollTimeout);
+			return ConsumerRecords.empty();
+		}
+		ConsumerRecords<K, V> records = consumer.poll(consumerPollTimeout);
+		if (!records.isEmpty())
+			updatePolledOffsets(records);
+		return records;
+	}
+	
+	private synchronized void updatePolledOffsets(ConsumerRecords<K,V> records) {
+		for (TopicPartition partition : records.partitions()) {
+			List<ConsumerRecord<K,V>> partitionRecords = records.records(partition);
+			polledOffsets.put(partition, partitionRecords.get(partitionRecords.size() - 1).offset() + 1);
+		}
+	}
+	
 	protected void wakeupConsumer(){
 		consumer.wakeup();
 	}
 	
+	/**
+	 * Pause fetching while the poll buffer holds pauseThreshold batches or more,
+	 * resume once it is down to resumeThreshold. Must be set before polling starts.
+	 */
+	protected void setFlowControl(int pauseThreshold, int resumeThreshold) {
+		this.pauseThreshold = pauseThreshold;
+		this.resumeThreshold = resumeThreshold;
+	}
+	
+	/**
+	 * Pause fetching while the throttle is exhausted. Submitted records
+	 * consume its tokens. Must be set before polling starts.
+	 */
+	protected void setThrottle(Throttle throttle) {
+		this.throttle = throttle;
+	}
+	
+	/**
+	 * Start a dedicated thread that polls Kafka and buffers up to
+	 * bufferSize record batches for {@link #getRecords(long)}. From
+	 * then on the consumer is only used by the poll thread.
+	 */
+	protected void startPolling(ThreadFactory threadFactory, final long consumerPollTimeout, int bufferSize) {
+		recordsBuffer = new ArrayBlockingQueue<ConsumerRecords<K,V>>(bufferSize);
+		pollThread = threadFactory.newThread(new Runnable() {
+
+			@Override
+			public void run() {
+				pollRecords(consumerPollTimeout);
+			}
+
+		});
+		pollThread.setDaemon(false);
+		trace.log(TraceLevel.INFO, "Starting poll thread with a buffer of " + bufferSize + " record batches."); //$NON-NLS-1$ //$NON-NLS-2$
+		pollThread.start();
+	}
+	
+	private boolean isPolling() {
+		return recordsBuffer != null;
+	}
+	
+	private void pollRecords(long consumerPollTimeout) {
+		// A polled batch the full buffer has no room for yet
+		ConsumerRecords<K,V> heldRecords = null;
+		while (!shutdown.get()) {
+			try {
+				// A batch polled before a seek is stale and is dropped.
+				if (applyPendingSeek())
+					heldRecords = null;
+				applyPendingCommit();
+				if (heldRecords != null && recordsBuffer.offer(heldRecords))
+					heldRecords = null;
+				controlFlow(heldRecords != null);
+				// Paused partitions return no records, so a held batch is never replaced
+				ConsumerRecords<K,V> records = pollConsumer(consumerPollTimeout);
+				if (records.isEmpty()) {
+					checkConnectionCount();
+					continue;
+				}
+				if (!hasPendingSeek() && !recordsBuffer.offer(records)) {
+					if(trace.isLoggable(TraceLevel.TRACE))
+						trace.log(TraceLevel.TRACE, "Poll buffer is full, holding the batch for the submitter."); //$NON-NLS-1$
+					heldRecords = records;
+				}
+			} catch (WakeupException e) {
+				if (!shutdown.get())
+					pollException.set(e);
+			} catch (InterruptedException e) {
+				trace.log(TraceLevel.INFO, "Poll thread interrupted."); //$NON-NLS-1$
+				return;
+			} catch (Exception e) {
+				// Surfaced to the submitting thread by getRecords()
+				pollException.set(e);
+			}
+		}
+	}
+	
+	private void controlFlow(boolean batchHeld) {
+		if (pauseThreshold > 0 && isPolling()) {
+			int bufferedBatches = recordsBuffer.size();
+			if (!bufferFull && bufferedBatches >= pauseThreshold) {
+				trace.log(TraceLevel.DEBUG, "Pausing partitions with " + bufferedBatches + " batches buffered."); //$NON-NLS-1$ //$NON-NLS-2$
+				bufferFull = true;
+			} else if (bufferFull && bufferedBatches <= resumeThreshold) {
+				trace.log(TraceLevel.DEBUG, "Resuming partitions with " + bufferedBatches + " batches buffered."); //$NON-NLS-1$ //$NON-NLS-2$
+				bufferFull = false;
+			}
+		}
+		boolean pause = batchHeld || bufferFull || (throttle != null && throttle.isExhausted());
+		if (pause) {
+			// Partitions assigned by a rebalance since the last pause are paused too
+			consumer.pause(consumer.assignment());
+			paused = true;
+		} else if (paused) {
+			consumer.resume(consumer.paused());
+			paused = false;
+		}
+	}
+	
+	private synchronized boolean hasPendingSeek() {
+		return pendingSeek != null;
+	}
+	
+	private synchronized boolean applyPendingSeek() {
+		if (pendingSeek == null)
+			return false;
+		recordsBuffer.clear();
+		seekConsumer(pendingSeek);
+		pendingSeek = null;
+		return true;
+	}
+	
 	public ConsumerRecords<K, V> getRecords(long consumerPollTimeout) throws InvalidOffsetException 
-		, WakeupException, AuthorizationException, KafkaException{
-		ConsumerRecords<K,V> records = consumer.poll(consumerPollTimeout);
+		, WakeupException, AuthorizationException, KafkaException, NoKafkaBrokerConnectionsException, InterruptedException{
+		if (isPolling())
+			return getBufferedRecords(consumerPollTimeout);
+		applyPendingCommit();
+		controlFlow(false);
+		ConsumerRecords<K,V> records = pollConsumer(consumerPollTimeout);
+		return records;
+	}
+	
+	private ConsumerRecords<K, V> getBufferedRecords(long consumerPollTimeout) throws NoKafkaBrokerConnectionsException, InterruptedException {
+		Exception e = pollException.getAndSet(null);
+		if (e instanceof NoKafkaBrokerConnectionsException)
+			throw (NoKafkaBrokerConnectionsException) e;
+		if (e instanceof RuntimeException)
+			throw (RuntimeException) e;
+		
+		// Nothing may be submitted until the poll thread has applied a reset.
+		if (hasPendingSeek())
+			return ConsumerRecords.empty();
+		ConsumerRecords<K,V> records = recordsBuffer.poll(consumerPollTimeout, TimeUnit.MILLISECONDS);
+		if (records == null)
+			return ConsumerRecords.empty();
 		return records;
 	}
+	
+	private synchronized void updateSubmittedOffsets(ConsumerRecords<K,V> records) {
+		for (TopicPartition partition : records.partitions()) {
+			// Records of a revoked partition may still be buffered
+			if (!assignedPartitions.contains(partition))
+				continue;
+			List<ConsumerRecord<K,V>> partitionRecords = records.records(partition);
+			long offset = partitionRecords.get(partitionRecords.size() - 1).offset() + 1;
+			submittedOffsets.put(partition, getCompleteOffset(partition, offset));
+			if (unfinishedPartitions.contains(partition) && offset >= endOffsets.get(partition)) {
+				trace.log(TraceLevel.INFO, "Partition: " + partition + " reached its end offset: " + endOffsets.get(partition)); //$NON-NLS-1$ //$NON-NLS-2$
+				unfinishedPartitions.remove(partition);
+			}
+		}
+	}
+	
+	private long getCompleteOffset(TopicPartition partition, long offset) {
+		if (reassembler == null)
+			return offset;
+		Long firstChunkOffset = reassembler.getFirstOffset(partition);
+		return firstChunkOffset == null ? offset : Math.min(offset, firstChunkOffset);
+	}
+	
     /**
-     * 
+     * When polling on a separate thread the offsets are those following the
+     * last submitted record of each partition, as records polled but not yet
+     * submitted are buffered.
      *
-     * @return A new map containing the offsets for the partitions.
+     * @return A new map containing the offsets for the partitions assigned to this client.
 	 */
-	protected synchronized Map<Integer, Long> getOffsetPositions() throws InterruptedException{
+	protected synchronized Map<TopicPartition, Long> getOffsetPositions() throws InterruptedException{
+		// Offsets of the last reset are superseded by this checkpoint
+		resetOffsets.clear();
+		if (isPolling())
+			return new HashMap<TopicPartition, Long>(submittedOffsets);
+		
 		Set<TopicPartition> partitionSet = consumer.assignment();
 		Iterator<TopicPartition> partitionIterator = partitionSet.iterator();
-		Map<Integer, Long> offsetMap = new HashMap<Integer, Long>();
+		Map<TopicPartition, Long> offsetMap = new HashMap<TopicPartition, Long>();
 		while(partitionIterator.hasNext()){
 			TopicPartition partition = partitionIterator.next();		
-			Long offset = consumer.position(partition);
-			offsetMap.put(partition.partition(), offset);
+			Long offset = getCompleteOffset(partition, consumer.position(partition));
+			offsetMap.put(partition, offset);
 			if(trace.isLoggable(TraceLevel.INFO))
-				trace.log(TraceLevel.INFO, "Retrieving offset: " + offset + " for topic: " + partition.topic()); //$NON-NLS-1$ //$NON-NLS-2$
+				trace.log(TraceLevel.INFO, "Retrieving offset: " + offset + " for topic: " + partition.topic() + " partition: " + partition.partition()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 		}
+		// Starting point for the submitted offsets if polling starts later
+		submittedOffsets.putAll(offsetMap);
 		
 		return offsetMap;
 	}
 	
-	protected synchronized void seekToPositions(Map<Integer, Long> offsetMap){
+	/*
+	 * The map holds the partitions of all the consumers of the operator. This
+	 * client seeks on the partitions assigned to it and keeps the others in
+	 * case they get assigned to it. When polling on a separate thread, the
+	 * seek is left to the poll thread, which also discards any batch buffered
+	 * before it.
+	 */
+	protected synchronized void seekToPositions(Map<TopicPartition, Long> offsetMap){
+		resetOffsets.clear();
+		Map<TopicPartition, Long> assignedOffsetMap = new HashMap<TopicPartition, Long>();
+		for (Entry<TopicPartition, Long> entry : offsetMap.entrySet()) {
+			if (assignedPartitions.contains(entry.getKey()))
+				assignedOffsetMap.put(entry.getKey(), entry.getValue());
+			else
+				resetOffsets.put(entry.getKey(), entry.getValue());
+		}
+		submittedOffsets.putAll(assignedOffsetMap);
+		if (reassembler != null)
+			reassembler.discard(assignedOffsetMap.keySet());
+		for (Entry<TopicPartition, Long> entry : assignedOffsetMap.entrySet()) {
+			Long endOffset = endOffsets.get(entry.getKey());
+			if (endOffset == null)
+				continue;
+			if (entry.getValue() < endOffset)
+				unfinishedPartitions.add(entry.getKey());
+			else
+				unfinishedPartitions.remove(entry.getKey());
+		}
+		
+		if (isPolling()) {
+			pendingSeek = assignedOffsetMap;
+			return;
+		}
+		seekConsumer(assignedOffsetMap);
+	}
+	
+	/*
+	 * Move the client to the end of the bootstrap snapshot. The offsets of the
+	 * partitions assigned to this client are taken from the shared map, the
+	 * others are left in it for the client they get assigned to. Called
+	 * before polling starts.
+	 */
+	protected synchronized void seekToSnapshot(Map<TopicPartition, Long> snapshotOffsets) {
+		this.snapshotOffsets = snapshotOffsets;
+		Map<TopicPartition, Long> assignedOffsetMap = new HashMap<TopicPartition, Long>();
+		for (TopicPartition partition : assignedPartitions) {
+			Long offset = snapshotOffsets.remove(partition);
+			if (offset != null)
+				assignedOffsetMap.put(partition, offset);
+		}
+		submittedOffsets.putAll(assignedOffsetMap);
+		seekConsumer(assignedOffsetMap);
+	}
+	
+	/**
+	 * Callback for the results of {@link #commitOffsets(Map)}.
+	 * Must be set before polling starts.
+	 */
+	protected void setCommitCallback(OffsetCommitCallback commitCallback) {
+		this.commitCallback = commitCallback;
+	}
+	
+	/*
+	 * The map holds the partitions of all the consumers of the operator,
+	 * this client commits those assigned to it.
+	 */
+	protected synchronized void commitOffsets(Map<TopicPartition, Long> offsetMap) {
+		Map<TopicPartition, OffsetAndMetadata> commitMap = new HashMap<TopicPartition, OffsetAndMetadata>();
+		for (Entry<TopicPartition, Long> entry : offsetMap.entrySet()) {
+			if (assignedPartitions.contains(entry.getKey()))
+				commitMap.put(entry.getKey(), new OffsetAndMetadata(entry.getValue()));
+		}
+		if (!commitMap.isEmpty())
+			pendingCommit = commitMap;
+	}
+	
+	private void applyPendingCommit() {
+		Map<TopicPartition, OffsetAndMetadata> commitMap;
+		synchronized (this) {
+			commitMap = pendingCommit;
+			pendingCommit = null;
+		}
+		if (commitMap == null)
+			return;
+		if (trace.isLoggable(TraceLevel.DEBUG))
+			trace.log(TraceLevel.DEBUG, "Committing offsets: " + commitMap); //$NON-NLS-1$
+		consumer.commitAsync(commitMap, commitCallback);
+	}
+	
+	private void seekConsumer(Map<TopicPartition, Long> offsetMap){
 		Set<TopicPartition> partitionSet = consumer.assignment();
-		String topic = partitionSet.iterator().next().topic();
 		
-		Iterator<Entry<Integer, Long>> partitionOffsetIterator = offsetMap.entrySet().iterator();
+		Iterator<Entry<TopicPartition, Long>> partitionOffsetIterator = offsetMap.entrySet().iterator();
 		while (partitionOffsetIterator.hasNext()){
-			Entry<Integer, Long> entry = partitionOffsetIterator.next();
-			TopicPartition partition = new TopicPartition(topic, entry.getKey());
+			Entry<TopicPartition, Long> entry = partitionOffsetIterator.next();
+			TopicPartition partition = entry.getKey();
+			// The assignment may have changed since the seek was requested
+			if (!partitionSet.contains(partition))
+				continue;
 			Long offset = entry.getValue();
 			trace.log(TraceLevel.INFO, "Seeking to offset: " + offset + " for topic: " + partition.topic() + " from postion: " + consumer.position(partition)); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
 			consumer.seek(partition, offset);
+			polledOffsets.put(partition, offset);
 		}
 	}
 
 	public void checkConnectionCount() throws NoKafkaBrokerConnectionsException {
-		@SuppressWarnings("unchecked")
-		Map<MetricName,KafkaMetric> metricsMap = (Map<MetricName, KafkaMetric>) consumer.metrics();
-		
-		for (Map.Entry<MetricName,KafkaMetric> metric : metricsMap.entrySet()){
-			if (metric.getKey().name().equals("connection-count")){ //$NON-NLS-1$
-				if (metric.getValue().value() == 0){
-					throw new NoKafkaBrokerConnectionsException();
-				}
-			}
+		// The poll thread checks the connections itself
+		if (idle || (isPolling() && Thread.currentThread() != pollThread))
+			return;
+		if (connectionCountMetric == null)
+			connectionCountMetric = findMetric(consumer.metrics(), "connection-count"); //$NON-NLS-1$
+		if (connectionCountMetric != null && connectionCountMetric.value() == 0){
+			throw new NoKafkaBrokerConnectionsException();
 		}
 	}
 	
+	/**
+	 * Current values of the consumer wide fetch metrics,
+	 * keyed by the Kafka metric names in FETCH_METRIC_NAMES.
+	 * Metrics without a value yet are left out.
+	 */
+	protected synchronized Map<String, Double> getFetchMetrics() {
+		return getMetricValues(consumer.metrics(), FETCH_METRIC_NAMES, fetchMetrics);
+	}
+	
+	/**
+	 * Reassemble chunked messages, see {@link MessageChunker}. Requires
+	 * byte array keys and messages. Must be set before polling starts.
+	 */
+	protected void setReassembler(ChunkReassembler reassembler) {
+		this.reassembler = reassembler;
+	}
+	
+	/**
+	 * Decode messages as Avro records, see {@link AvroTupleConverter}.
+	 * Requires byte array messages. Must be set before polling starts.
+	 */
+	protected void setAvroConverter(AvroTupleConverter avroConverter) {
+		this.avroConverter = avroConverter;
+	}
+	
+	/**
+	 * Submit only the records passing the filter. Must be set before polling starts.
+	 */
+	protected void setFilter(RecordFilter filter) {
+		this.filter = filter;
+	}
+	
+	@SuppressWarnings("unchecked")
 	public void processAndSubmit(ConsumerRecords<K,V> records) throws Exception {
 		String topic;
+		// Records at or past the end offset of their partition are not submitted
+		Map<TopicPartition, Long> unfinishedEndOffsets = offsetRange != null && offsetRange.isBounded() ? getUnfinishedEndOffsets() : null;
 		for (ConsumerRecord<K,V> record : records){
 			topic = record.topic();
 			if(shutdown.get()) return;
+			if (unfinishedEndOffsets != null) {
+				Long endOffset = unfinishedEndOffsets.get(new TopicPartition(topic, record.partition()));
+				if (endOffset == null || record.offset() >= endOffset)
+					continue;
+			}
 			if(trace.isLoggable(TraceLevel.DEBUG))
 				trace.log(TraceLevel.DEBUG, "Topic: " + topic + ", Message: " + record.value() ); //$NON-NLS-1$ //$NON-NLS-2$
+			K key = record.key();
+			V value = record.value();
+			if (reassembler != null) {
+				ChunkReassembler.Message message = reassembler.add(new TopicPartition(topic, record.partition()),
+						record.offset(), (byte[]) key, (byte[]) value);
+				if (message == null)
+					continue;
+				key = (K) message.key;
+				value = (V) message.value;
+			}
+			if (filter != null && !filter.accept(key, value))
+				continue;
+			StreamingOutput<OutputTuple> streamingOutput = outputRouter.getOutput(record.partition(), key);
 			OutputTuple otup = streamingOutput.newTuple();
 			if(topicAH.isAvailable())
 				topicAH.setValue(otup, topic);
 			if(keyAH.isAvailable())
-				setKeyValue(keyAH, otup, record.key());
+				setKeyValue(keyAH, otup, key);
 				
-			setMessageValue(messageAH, otup, record.value());
+			if (avroConverter == null) {
+				setMessageValue(messageAH, otup, value);
+			} else if (value != null) {
+				try {
+					avroConverter.decode((byte[]) value, otup);
+				} catch (Exception e) {
+					trace.log(TraceLevel.WARN, "Skipping message from partition " + new TopicPartition(topic, record.partition()) //$NON-NLS-1$
+							+ " at offset " + record.offset() + ", it could not be decoded: " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+					continue;
+				}
+			}
 			streamingOutput.submit(otup);
 		}
+		updateSubmittedOffsets(records);
+		if (throttle != null)
+			throttle.consume(records);
 	}
 	
 	protected abstract void setMessageValue(AttributeHelper messageAH, OutputTuple otup,
@@ -168,6 +785,15 @@ public abstract class KafkaConsumerClient<K,V> extends KafkaBaseClient {
 	public void shutdown() {
 		trace.log(TraceLevel.ALL, "Shutting down Kafka Consumer Client..."); //$NON-NLS-1$
 		shutdown.set(true);
+		if (pollThread != null) {
+			// The consumer may only be closed once the poll thread is done with it
+			consumer.wakeup();
+			try {
+				pollThread.join();
+			} catch (InterruptedException e) {
+				trace.log(TraceLevel.WARN, "Interrupted while waiting for the poll thread to end."); //$NON-NLS-1$
+			}
+		}
 		consumer.close();	
 	}
 	
@@ -4,41 +4,338 @@
  *******************************************************************************/
 package com.ibm.streamsx.messaging.kafka;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.apache.kafka.clients.producer.Callback;
 import org.apache.kafka.clients.producer.KafkaProducer;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.MetricName;
+
 import com.ibm.streams.operator.Tuple;
 import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
 
 public abstract class KafkaProducerClient extends KafkaBaseClient {
 	protected AtomicBoolean messageException = new AtomicBoolean(false);
+	private Metric nFailedSends;
+	
+	/*
+	 * sendException is the first send failure since the last drain or reset,
+	 * reported by drain(). inFlightMessages caps the messages not acknowledged
+	 * yet when maxInFlightMessages is set.
+	 */
+	private final AtomicReference<Exception> sendException = new AtomicReference<Exception>();
+	private Semaphore inFlightMessages;
+	
+	/*
+	 * The client sends through producerCount producers, obtained from
+	 * KafkaProducerRegistry if sharedProducer is set. Messages with a key
+	 * are routed by the hash of the key, so the order of the messages of a
+	 * key is kept. Messages without a key go to the producer with the fewest
+	 * messages not acknowledged yet, counted in pendingMessages.
+	 */
+	private final boolean sharedProducer;
+	private final int producerCount;
+	private final List<KafkaProducer<?,?>> producers = new ArrayList<KafkaProducer<?,?>>();
+	private final AtomicInteger[] pendingMessages;
+	
+	/*
+	 * Kafka producer metrics, resolved once by name for each producer.
+	 */
+	static final String[] PRODUCER_METRIC_NAMES = { "record-send-rate", "batch-size-avg", "records-per-request-avg", //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+			"record-queue-time-avg", "request-latency-avg", "buffer-available-bytes", "compression-rate-avg" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	private final List<Map<String, org.apache.kafka.common.Metric>> producerMetrics = new ArrayList<Map<String, org.apache.kafka.common.Metric>>();
+	
+	/*
+	 * Overflow handling. The buffer memory of a producer is exhausted when
+	 * it cannot allocate a new batch of batch.size bytes, in which case
+	 * send() would block. When a spill buffer is set, messages go to the
+	 * spill buffer while the buffer memory of any producer is exhausted
+	 * or spilled messages are waiting to be replayed, to keep their order.
+	 */
+	private final long batchSize;
+	private final List<org.apache.kafka.common.Metric> bufferAvailableMetrics = new ArrayList<org.apache.kafka.common.Metric>();
+	private SpillBuffer spillBuffer;
+	private Metric nSpilledMessages;
+	private Metric sendBlockedTime;
+	
+	// Encodes the attributes of tuples as Avro messages, in place of the message attribute
+	protected AvroTupleConverter avroConverter;
 	
 	public KafkaProducerClient(AttributeHelper topicAH, AttributeHelper keyAH,
-			AttributeHelper messageAH, Properties props){
+			AttributeHelper messageAH, Properties props, boolean sharedProducer, int producerCount){
 		super(topicAH, keyAH, messageAH, props);
 		props = KafkaConfigUtilities.setDefaultSerializers(keyAH, messageAH, props);
+		this.sharedProducer = sharedProducer;
+		this.producerCount = producerCount;
+		batchSize = Long.parseLong(props.getProperty("batch.size", "16384")); //$NON-NLS-1$ //$NON-NLS-2$
+		pendingMessages = new AtomicInteger[producerCount];
+		for (int i = 0; i < producerCount; i++)
+			pendingMessages[i] = new AtomicInteger();
+	}
+	
+	protected <K,V> List<KafkaProducer<K,V>> newProducers(Properties props) {
+		List<KafkaProducer<K,V>> newProducers = new ArrayList<KafkaProducer<K,V>>(producerCount);
+		for (int i = 0; i < producerCount; i++) {
+			Properties producerProps = getProducerProperties(props, i);
+			KafkaProducer<K,V> producer = sharedProducer ? KafkaProducerRegistry.<K,V>acquire(producerProps, i)
+					: new KafkaProducer<K,V>(producerProps);
+			newProducers.add(producer);
+			producers.add(producer);
+			producerMetrics.add(new HashMap<String, org.apache.kafka.common.Metric>());
+			bufferAvailableMetrics.add(findMetric(producer.metrics(), "buffer-available-bytes")); //$NON-NLS-1$
+		}
+		return newProducers;
+	}
+	
+	/*
+	 * Producers of the same client need distinct client ids
+	 * to avoid clashing registrations of their Kafka metrics.
+	 */
+	private Properties getProducerProperties(Properties props, int producerIndex) {
+		if (producerCount == 1 || !props.containsKey("client.id")) //$NON-NLS-1$
+			return props;
+		Properties producerProps = new Properties();
+		producerProps.putAll(props);
+		producerProps.setProperty("client.id", props.getProperty("client.id") + "-" + producerIndex); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return producerProps;
+	}
+	
+	@Override
+	void shutdown() {
+		for (KafkaProducer<?,?> producer : producers) {
+			if (sharedProducer)
+				KafkaProducerRegistry.release(producer);
+			else
+				producer.close();
+		}
 	}
 
 	abstract void send(Tuple tuple, List<String> topics) throws Exception;
 
 	abstract void send(Tuple tuple) throws Exception;
 	
+	/**
+	 * Send a message replayed from the spill buffer.
+	 */
+	abstract void replay(String topic, byte[] key, byte[] message) throws InterruptedException;
+	
+	/**
+	 * Split messages larger than maxChunkSize bytes into several records,
+	 * see {@link MessageChunker}. 0 sends every message as one record.
+	 */
+	abstract void setMaxChunkSize(int maxChunkSize);
+	
+	/**
+	 * Encode messages as Avro records, see {@link AvroTupleConverter}.
+	 * Requires a byte array client.
+	 */
+	void setAvroConverter(AvroTupleConverter avroConverter) {
+		this.avroConverter = avroConverter;
+	}
+	
+	public void setSendBlockedTimeMetric(Metric sendBlockedTime) {
+		this.sendBlockedTime = sendBlockedTime;
+	}
+	
+	/**
+	 * Spill messages to the buffer instead of blocking while the
+	 * buffer memory of the producers is exhausted.
+	 */
+	public void setSpillBuffer(SpillBuffer spillBuffer, Metric nSpilledMessages) {
+		this.spillBuffer = spillBuffer;
+		this.nSpilledMessages = nSpilledMessages;
+	}
+	
+	/**
+	 * @return true if sending a message might block until buffer memory
+	 * of a producer is freed.
+	 */
+	public boolean isBufferExhausted() {
+		for (org.apache.kafka.common.Metric bufferAvailable : bufferAvailableMetrics) {
+			if (bufferAvailable != null && bufferAvailable.value() < batchSize)
+				return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Send the spilled messages, oldest first.
+	 * @param block If false, stop when the buffer memory is exhausted
+	 * instead of blocking.
+	 */
+	public void replaySpilled(boolean block) throws IOException, InterruptedException {
+		if (spillBuffer == null)
+			return;
+		synchronized (spillBuffer) {
+			while (!spillBuffer.isEmpty() && (block || !isBufferExhausted())) {
+				// Removed only once replayed, a failed send leaves it spilled
+				SpillBuffer.SpilledMessage spilled = spillBuffer.peek();
+				replay(spilled.topic, spilled.key, spilled.message);
+				spillBuffer.remove();
+			}
+		}
+	}
+	
+	public void setFailedSendsMetric(Metric nFailedSends) {
+		this.nFailedSends = nFailedSends;
+	}
+	
+	/**
+	 * Limit the number of messages sent but not acknowledged yet. Sending
+	 * blocks while the limit is reached. 0 leaves the number unbounded.
+	 */
+	public void setMaxInFlightMessages(int maxInFlightMessages) {
+		inFlightMessages = maxInFlightMessages > 0 ? new Semaphore(maxInFlightMessages) : null;
+	}
+	
+	protected <K,V> void sendRecord(List<KafkaProducer<K,V>> producers, ProducerRecord<K,V> record) throws InterruptedException, IOException {
+		if (spillBuffer == null) {
+			sendToProducer(producers, record);
+			return;
+		}
+		synchronized (spillBuffer) {
+			replaySpilled(false);
+			if (spillBuffer.isEmpty() && !isBufferExhausted()) {
+				sendToProducer(producers, record);
+			} else {
+				spillBuffer.add(record.topic(), toBytes(record.key()), toBytes(record.value()));
+				if (nSpilledMessages != null)
+					nSpilledMessages.increment();
+			}
+		}
+	}
+	
+	private static byte[] toBytes(Object value) {
+		if (value instanceof String)
+			return ((String) value).getBytes(StandardCharsets.UTF_8);
+		return (byte[]) value;
+	}
+	
+	protected <K,V> void sendToProducer(List<KafkaProducer<K,V>> producers, ProducerRecord<K,V> record) throws InterruptedException {
+		int producerIndex = producerCount == 1 ? 0 : selectProducer(record.key());
+		AtomicInteger pending = producerCount == 1 ? null : pendingMessages[producerIndex];
+		if (inFlightMessages != null)
+			inFlightMessages.acquire();
+		if (pending != null)
+			pending.incrementAndGet();
+		try {
+			long start = System.nanoTime();
+			producers.get(producerIndex).send(record, getMessageCallback(pending));
+			// Only count sends that blocked, for buffer memory or metadata
+			long blockedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			if (blockedMillis > 0 && sendBlockedTime != null)
+				sendBlockedTime.incrementValue(blockedMillis);
+		} catch (RuntimeException e) {
+			// The callback is not called when send() throws
+			if (inFlightMessages != null)
+				inFlightMessages.release();
+			if (pending != null)
+				pending.decrementAndGet();
+			throw e;
+		}
+	}
+	
+	private int selectProducer(Object key) {
+		if (key != null) {
+			int hash = key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode();
+			return (hash & Integer.MAX_VALUE) % producerCount;
+		}
+		int producerIndex = 0;
+		for (int i = 1; i < producerCount; i++) {
+			if (pendingMessages[i].get() < pendingMessages[producerIndex].get())
+				producerIndex = i;
+		}
+		return producerIndex;
+	}
+	
+	void flush() {
+		for (KafkaProducer<?,?> producer : producers)
+			producer.flush();
+	}
+	
+	/**
+	 * Send all buffered messages and wait for their acknowledgement.
+	 * @throws Exception The first failure to send a message since the
+	 * last drain or reset.
+	 */
+	public void drain() throws Exception {
+		replaySpilled(true);
+		flush();
+		Exception e = sendException.getAndSet(null);
+		if (e != null)
+			throw e;
+	}
+	
+	/**
+	 * Forget the send failures of messages that will be replayed.
+	 */
+	public void resetSendException() {
+		sendException.set(null);
+	}
+	
+	void inheritSendException(KafkaProducerClient previousClient) {
+		Exception e = previousClient.sendException.get();
+		if (e != null)
+			sendException.compareAndSet(null, e);
+	}
+	
+	/**
+	 * Current values of the producer metrics, keyed by the Kafka
+	 * metric names in PRODUCER_METRIC_NAMES. Rates and available
+	 * bytes are summed over the producers, averages are averaged.
+	 * Metrics without a value yet are left out.
+	 */
+	public synchronized Map<String, Double> getProducerMetrics() {
+		Map<String, Double> totals = new HashMap<String, Double>();
+		Map<String, Integer> counts = new HashMap<String, Integer>();
+		for (int i = 0; i < producers.size(); i++) {
+			Map<MetricName, ? extends org.apache.kafka.common.Metric> metrics = producers.get(i).metrics();
+			for (Map.Entry<String, Double> value : getMetricValues(metrics, PRODUCER_METRIC_NAMES, producerMetrics.get(i)).entrySet()) {
+				Double total = totals.get(value.getKey());
+				Integer count = counts.get(value.getKey());
+				totals.put(value.getKey(), total == null ? value.getValue() : total + value.getValue());
+				counts.put(value.getKey(), count == null ? 1 : count + 1);
+			}
+		}
+		for (Map.Entry<String, Double> total : totals.entrySet()) {
+			if (total.getKey().endsWith("-avg")) //$NON-NLS-1$
+				total.setValue(total.getValue() / counts.get(total.getKey()));
+		}
+		return totals;
+	}
+	
 	public boolean hasMessageException() {
 		return messageException.get();
 	}
 	
-	protected Callback getMessageCallback() {
+	protected Callback getMessageCallback(final AtomicInteger pending) {
 		return new Callback() {
             public void onCompletion(RecordMetadata metadata, Exception e) {
+                if (inFlightMessages != null)
+                	inFlightMessages.release();
+                if (pending != null)
+                	pending.decrementAndGet();
                 if(e != null){
+                	sendException.compareAndSet(null, e);
                     e.printStackTrace();
                     trace.log(TraceLevel.ERROR, "Message exception: " + e.getMessage()); //$NON-NLS-1$
 	                messageException.set(true);
+	                if (nFailedSends != null)
+	                	nFailedSends.increment();
                 }
             }
         };
@@ -52,12 +349,12 @@ public abstract class KafkaProducerClient extends KafkaBaseClient {
 
 class ProducerStringHelper extends KafkaProducerClient{
 
-	private KafkaProducer<String, String> producer = null;
+	private List<KafkaProducer<String, String>> producers;
 	
 	public ProducerStringHelper(AttributeHelper topicAH, AttributeHelper keyAH,
-			AttributeHelper messageAH, Properties props) {
-		super(topicAH, keyAH, messageAH, props);
-		producer = new KafkaProducer<String, String>(props);
+			AttributeHelper messageAH, Properties props, boolean sharedProducer, int producerCount) {
+		super(topicAH, keyAH, messageAH, props, sharedProducer, producerCount);
+		producers = newProducers(props);
 		trace.log(TraceLevel.INFO, "Creating producer of type KafkaProducer\\<String,String\\>" ); //$NON-NLS-1$
 	}
 
@@ -67,7 +364,7 @@ class ProducerStringHelper extends KafkaProducerClient{
 		String message = messageAH.getString(tuple);
 		String key = keyAH.getString(tuple);
 		
-		producer.send(new ProducerRecord<String, String>(topic ,key, message),  getMessageCallback());
+		sendRecord(producers, new ProducerRecord<String, String>(topic ,key, message));
 	}
 
 	@Override
@@ -76,27 +373,35 @@ class ProducerStringHelper extends KafkaProducerClient{
 		String key = keyAH.getString(tuple);
 
 		for(String topic : topics) {
-			producer.send(new ProducerRecord<String, String>(topic ,key, message), 
-					getMessageCallback());
+			sendRecord(producers, new ProducerRecord<String, String>(topic ,key, message));
 		}
 
 	}
 	
 	@Override
-	void shutdown(){
-		if (producer != null)
-			producer.close();
+	void replay(String topic, byte[] key, byte[] message) throws InterruptedException {
+		sendToProducer(producers, new ProducerRecord<String, String>(topic,
+				key == null ? null : new String(key, StandardCharsets.UTF_8),
+				message == null ? null : new String(message, StandardCharsets.UTF_8)));
+	}
+	
+	@Override
+	void setMaxChunkSize(int maxChunkSize) {
+		// Chunk headers are binary and cannot go through a String serializer
+		if (maxChunkSize > 0)
+			throw new IllegalArgumentException(Messages.getString("BYTE_ARRAY_SERIALIZATION_REQUIRED", "maxChunkSize")); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 }
 
 
 class ProducerByteHelper extends KafkaProducerClient{
-	private KafkaProducer<byte[],byte[]> producer = null;
+	private List<KafkaProducer<byte[],byte[]>> producers;
+	private MessageChunker chunker;
 	
 	public ProducerByteHelper(AttributeHelper topicAH, AttributeHelper keyAH,
-			AttributeHelper messageAH, Properties props) {
-		super(topicAH, keyAH, messageAH, props);
-		producer = new KafkaProducer<byte[],byte[]>(props);
+			AttributeHelper messageAH, Properties props, boolean sharedProducer, int producerCount) {
+		super(topicAH, keyAH, messageAH, props, sharedProducer, producerCount);
+		producers = newProducers(props);
 		trace.log(TraceLevel.INFO, "Creating producer of type KafkaProducer\\<Byte,Byte\\>" ); //$NON-NLS-1$
 	}
 
@@ -104,29 +409,48 @@ class ProducerByteHelper extends KafkaProducerClient{
 	@Override
 	void send(Tuple tuple) throws Exception {
 		String topic = topicAH.getString(tuple);
-		byte [] message = messageAH.getBytes(tuple);
+		byte [] message = getMessageBytes(tuple);
 		byte [] key = keyAH.getBytes(tuple);
 
-		producer.send(new ProducerRecord<byte[],byte[]>(topic ,key, message), 
-				getMessageCallback());
+		if (chunker != null)
+			sendChunks(topic, chunker.split(key, message));
+		else
+			sendRecord(producers, new ProducerRecord<byte[],byte[]>(topic ,key, message));
 	}
 
 	@Override
 	void send(Tuple tuple, List<String> topics) throws Exception {
-		byte [] message = messageAH.getBytes(tuple);
+		byte [] message = getMessageBytes(tuple);
 		byte [] key = keyAH.getBytes(tuple);
+		// Split once, the chunks are the same for every topic
+		MessageChunker.Chunks chunks = chunker == null ? null : chunker.split(key, message);
 
 		for(String topic : topics) {
-			producer.send(new ProducerRecord<byte[],byte[]>(topic,key, message), 
-					getMessageCallback());
+			if (chunks != null)
+				sendChunks(topic, chunks);
+			else
+				sendRecord(producers, new ProducerRecord<byte[],byte[]>(topic,key, message));
 		}
 
 	}
 	
+	private byte[] getMessageBytes(Tuple tuple) throws IOException {
+		return avroConverter != null ? avroConverter.encode(tuple) : messageAH.getBytes(tuple);
+	}
+	
+	private void sendChunks(String topic, MessageChunker.Chunks chunks) throws InterruptedException, IOException {
+		for (byte[] chunk : chunks.values)
+			sendRecord(producers, new ProducerRecord<byte[],byte[]>(topic, chunks.key, chunk));
+	}
+	
+	@Override
+	void setMaxChunkSize(int maxChunkSize) {
+		chunker = maxChunkSize > 0 ? new MessageChunker(maxChunkSize) : null;
+	}
+	
 	@Override
-	void shutdown(){
-		if (producer != null)
-			producer.close();
+	void replay(String topic, byte[] key, byte[] message) throws InterruptedException {
+		sendToProducer(producers, new ProducerRecord<byte[],byte[]>(topic, key, message));
 	}
 
 }
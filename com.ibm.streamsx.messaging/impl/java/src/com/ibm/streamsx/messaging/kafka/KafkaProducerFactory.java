@@ -10,22 +10,63 @@ import java.util.logging.Logger;
 import com.ibm.streams.operator.logging.TraceLevel;
 
 public class KafkaProducerFactory {
+	private static final String STRING_SERIALIZER = "org.apache.kafka.common.serialization.StringSerializer"; //$NON-NLS-1$
+	private static final String BYTE_ARRAY_SERIALIZER = "org.apache.kafka.common.serialization.ByteArraySerializer"; //$NON-NLS-1$
+	
 	KafkaProducerClient client;
 	private final Logger trace = Logger.getLogger(KafkaProducerFactory.class
 			.getCanonicalName());
 	
 	public KafkaProducerClient getClient(AttributeHelper topicAH,
 			AttributeHelper keyAH, AttributeHelper messageAH, Properties props) {
-		if (messageAH.isString() && (!keyAH.isAvailable() || keyAH.isString())){
+		return getClient(topicAH, keyAH, messageAH, props, false, 1);
+	}
+	
+	/**
+	 * @param sharedProducer If true, the client uses the producers of the PE's
+	 * {@link KafkaProducerRegistry} for its properties.
+	 * @param producerCount Number of producers the client sends through.
+	 */
+	public KafkaProducerClient getClient(AttributeHelper topicAH,
+			AttributeHelper keyAH, AttributeHelper messageAH, Properties props, boolean sharedProducer, int producerCount) {
+		if (!messageAH.isAvailable()) {
+			// Avro messages, encoded by the client, see KafkaProducerClient.setAvroConverter()
+			trace.log(TraceLevel.WARNING, "Using KafkaProducer<byte,byte> client for Avro messages."); //$NON-NLS-1$
+			Properties byteProps = new Properties();
+			byteProps.putAll(props);
+			for (String property : new String[] { "key.serializer", "value.serializer" }) { //$NON-NLS-1$ //$NON-NLS-2$
+				if (!BYTE_ARRAY_SERIALIZER.equals(byteProps.getProperty(property, BYTE_ARRAY_SERIALIZER)))
+					throw new IllegalArgumentException(Messages.getString("BYTE_ARRAY_SERIALIZATION_REQUIRED", "avroSchemaFile")); //$NON-NLS-1$ //$NON-NLS-2$
+				byteProps.put(property, BYTE_ARRAY_SERIALIZER);
+			}
+			client = new ProducerByteHelper(topicAH, keyAH, messageAH, byteProps, sharedProducer, producerCount);
+		} else if (messageAH.isString() && (!keyAH.isAvailable() || keyAH.isString()) && usesDefaultStringSerializers(props)){
+			// StringSerializer encodes in UTF-8 like AttributeHelper.getBytes(). Encoding in the
+			// client lets a message sent to several topics be encoded only once.
+			trace.log(TraceLevel.WARNING, "Using KafkaProducer<byte,byte> client for String attributes."); //$NON-NLS-1$
+			Properties byteProps = new Properties();
+			byteProps.putAll(props);
+			byteProps.put("key.serializer", BYTE_ARRAY_SERIALIZER); //$NON-NLS-1$
+			byteProps.put("value.serializer", BYTE_ARRAY_SERIALIZER); //$NON-NLS-1$
+			client = new ProducerByteHelper(topicAH, keyAH, messageAH, byteProps, sharedProducer, producerCount);
+		} else if (messageAH.isString() && (!keyAH.isAvailable() || keyAH.isString())){
 			trace.log(TraceLevel.WARNING, "Using KafkaProducer<String,String> client."); //$NON-NLS-1$
-			client = new ProducerStringHelper(topicAH, keyAH, messageAH, props);
+			client = new ProducerStringHelper(topicAH, keyAH, messageAH, props, sharedProducer, producerCount);
 		} else if ( !messageAH.isString() && (!keyAH.isAvailable() || !keyAH.isString())){
 			trace.log(TraceLevel.WARNING, "Using KafkaProducer<byte,byte> client."); //$NON-NLS-1$
-			client = new ProducerByteHelper(topicAH, keyAH, messageAH, props);
+			client = new ProducerByteHelper(topicAH, keyAH, messageAH, props, sharedProducer, producerCount);
 		} else {
 			trace.log(TraceLevel.ERROR, Messages.getString("KEY_AND_MESSAGE_TYPE_MUST_MATCH_AND_BE_STRING_OR_BYTE")); //$NON-NLS-1$
 		}
 
 		return client;
 	}
+	
+	private static boolean usesDefaultStringSerializers(Properties props) {
+		return STRING_SERIALIZER.equals(props.getProperty("key.serializer", STRING_SERIALIZER)) //$NON-NLS-1$
+				&& STRING_SERIALIZER.equals(props.getProperty("value.serializer", STRING_SERIALIZER)) //$NON-NLS-1$
+				&& !props.containsKey("serializer.encoding") //$NON-NLS-1$
+				&& !props.containsKey("key.serializer.encoding") //$NON-NLS-1$
+				&& !props.containsKey("value.serializer.encoding"); //$NON-NLS-1$
+	}
 }
@@ -0,0 +1,78 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import org.apache.kafka.clients.producer.KafkaProducer;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+/*
+ * KafkaProducers shared by the operators of a PE that have identical
+ * properties. KafkaProducer is thread safe, so sharing it gives the
+ * operators one record accumulator, one sender thread and one set of
+ * broker connections. A producer is closed when its last user releases it.
+ */
+class KafkaProducerRegistry {
+	private static final Logger trace = Logger.getLogger(KafkaProducerRegistry.class.getCanonicalName());
+
+	// Keyed by the properties and the index of the producer within its client
+	private static final Map<List<Object>, SharedProducer> producers = new HashMap<List<Object>, SharedProducer>();
+
+	private static class SharedProducer {
+		final KafkaProducer<?,?> producer;
+		int users;
+
+		SharedProducer(KafkaProducer<?,?> producer) {
+			this.producer = producer;
+		}
+	}
+
+	/**
+	 * Producer for the properties, created if no other operator uses one.
+	 * The properties must include the serializers, which determine the
+	 * producer's key and value types.
+	 * @param producerIndex Index of the producer for clients using several.
+	 */
+	@SuppressWarnings("unchecked")
+	static synchronized <K,V> KafkaProducer<K,V> acquire(Properties props, int producerIndex) {
+		SharedProducer sharedProducer = producers.get(Arrays.<Object>asList(props, producerIndex));
+		if (sharedProducer == null) {
+			// The key must not change with the caller's properties
+			Properties producerProps = new Properties();
+			producerProps.putAll(props);
+			sharedProducer = new SharedProducer(new KafkaProducer<K,V>(producerProps));
+			producers.put(Arrays.<Object>asList(producerProps, producerIndex), sharedProducer);
+			trace.log(TraceLevel.INFO, "Creating shared producer."); //$NON-NLS-1$
+		}
+		sharedProducer.users++;
+		trace.log(TraceLevel.INFO, "Shared producer has " + sharedProducer.users + " user(s)."); //$NON-NLS-1$ //$NON-NLS-2$
+		return (KafkaProducer<K,V>) sharedProducer.producer;
+	}
+
+	/**
+	 * Release a producer obtained from {@link #acquire(Properties, int)},
+	 * closing it if no other operator uses it.
+	 */
+	static synchronized void release(KafkaProducer<?,?> producer) {
+		for (Map.Entry<List<Object>, SharedProducer> entry : producers.entrySet()) {
+			SharedProducer sharedProducer = entry.getValue();
+			if (sharedProducer.producer != producer)
+				continue;
+			if (--sharedProducer.users == 0) {
+				trace.log(TraceLevel.INFO, "Closing shared producer."); //$NON-NLS-1$
+				producers.remove(entry.getKey());
+				producer.close();
+			}
+			return;
+		}
+	}
+}
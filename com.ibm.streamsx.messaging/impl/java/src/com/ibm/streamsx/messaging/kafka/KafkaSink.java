@@ -7,32 +7,61 @@ package com.ibm.streamsx.messaging.kafka;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Properties;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
 import com.ibm.streams.operator.OperatorContext;
 import com.ibm.streams.operator.OperatorContext.ContextCheck;
+import com.ibm.streams.operator.OutputTuple;
 import com.ibm.streams.operator.StreamSchema;
 import com.ibm.streams.operator.StreamingInput;
+import com.ibm.streams.operator.StreamingOutput;
 import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.Type.MetaType;
 import com.ibm.streams.operator.compile.OperatorContextChecker;
 import com.ibm.streams.operator.logging.TraceLevel;
+import com.ibm.streams.operator.metrics.Metric;
+import com.ibm.streams.operator.model.CustomMetric;
 import com.ibm.streams.operator.model.Icons;
 import com.ibm.streams.operator.model.InputPortSet;
 import com.ibm.streams.operator.model.InputPorts;
+import com.ibm.streams.operator.model.OutputPortSet;
+import com.ibm.streams.operator.model.OutputPorts;
 import com.ibm.streams.operator.model.Parameter;
 import com.ibm.streams.operator.model.PrimitiveOperator;
+import com.ibm.streams.operator.state.Checkpoint;
 import com.ibm.streams.operator.state.ConsistentRegionContext;
+import com.ibm.streams.operator.state.StateHandler;
 import com.ibm.streamsx.messaging.common.DataGovernanceUtil;
 import com.ibm.streamsx.messaging.common.IGovernanceConstants;
 
 @InputPorts(@InputPortSet(cardinality=1, optional=false, 
 	description="The tuples arriving on this port are expected to contain three attributes \\\"key\\\", \\\"topic\\\" and \\\"message\\\". " +
 			"Out of these \\\"message\\\", is a required attribute."))
+@OutputPorts(@OutputPortSet(cardinality=1, optional=true, 
+	description="Optional error output port. With the errorPort overflow policy, the tuples that cannot be sent without blocking "
+			+ "are submitted to this port. The port must have an rstring attribute for the error message, optionally preceded "
+			+ "by a tuple attribute with the schema of the input port for the tuple that was not sent."))
 @PrimitiveOperator(name=KafkaSink.OPER_NAME, description=KafkaSink.DESC)
 @Icons(location16="icons/KafkaProducer_deprecated_16.gif", location32="icons/KafkaProducer_deprecated_32.gif")
-public class KafkaSink extends KafkaBaseOper {
+public class KafkaSink extends KafkaBaseOper implements StateHandler {
+	
+	/**
+	 * What to do with a tuple when the producer's buffer memory is exhausted.
+	 */
+	public enum OverflowPolicy {
+		/** Wait for buffer memory in send(), up to max.block.ms. */
+		block,
+		/** Submit the tuple to the error output port. */
+		errorPort,
+		/** Spill the message to a local file, replayed when buffer memory is freed. */
+		spill
+	}
 
 	private static final String DEPRECATION_MESSAGE = "The `com.ibm.streamsx.messaging.kafka.KafkaProducer` operator is "
 			+ "deprecated and is replaced by the `com.ibm.streamsx.kafka.KafkaProducer` "
@@ -46,7 +75,101 @@ public class KafkaSink extends KafkaBaseOper {
 	static final String OPER_NAME =  "KafkaProducer"; //$NON-NLS-1$
 	
 	private static final Logger trace = Logger.getLogger(KafkaSink.class.getName());
-	private KafkaProducerClient producerClient;
+	private volatile KafkaProducerClient producerClient;
+	private int maxInFlightMessages = 0;
+	private boolean stickyPartitioning = false;
+	private boolean sharedProducer = false;
+	private int producerCount = 1;
+	private OverflowPolicy overflowPolicy = OverflowPolicy.block;
+	private SpillBuffer spillBuffer;
+	// Milliseconds between replays of spilled messages while no tuples arrive
+	private static final long SPILL_REPLAY_PERIOD = 100;
+	private StreamingOutput<OutputTuple> errorOutputPort;
+	private StreamSchema embeddedSchema;
+	private int targetLatency = 0;
+	private int maxLingerMs = 100;
+	private int maxBatchSize = 1048576;
+	private int maxChunkSize = 0;
+	private Integer avroSchemaId;
+	private AvroTupleConverter avroConverter;
+	private ProducerTuner producerTuner;
+	// Set by the metrics timer, the producer is recreated by the next tuple
+	private volatile boolean producerRetuned = false;
+	/*
+	 * Guards the producer client against being replaced while in use: sends,
+	 * replays and drains hold the read lock, replacing the client holds the
+	 * write lock, so that the old client is only shut down, flushing its
+	 * messages, once no thread is sending through it.
+	 */
+	private final ReadWriteLock producerLock = new ReentrantReadWriteLock();
+	
+	/*
+	 * Kafka producer metrics, copied from the producer every
+	 * KAFKA_METRICS_PERIOD seconds, and the count of sends
+	 * failed in the producer's callback.
+	 */
+	private Metric recordSendRate;
+	private Metric batchSizeAvg;
+	private Metric recordsPerRequestAvg;
+	private Metric recordQueueTimeAvg;
+	private Metric requestLatencyAvg;
+	private Metric bufferAvailableBytes;
+	private Metric compressionRateAvg;
+	private Metric nFailedSends;
+	private Metric sendBlockedTime;
+	private Metric nOverflowTuples;
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Number of records sent per second.")
+	public void setRecordSendRate(Metric recordSendRate) {
+		this.recordSendRate = recordSendRate;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average number of bytes sent per partition per request.")
+	public void setBatchSizeAvg(Metric batchSizeAvg) {
+		this.batchSizeAvg = batchSizeAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average number of records per request, rounded.")
+	public void setRecordsPerRequestAvg(Metric recordsPerRequestAvg) {
+		this.recordsPerRequestAvg = recordsPerRequestAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average time in milliseconds record batches spent in the record accumulator.")
+	public void setRecordQueueTimeAvg(Metric recordQueueTimeAvg) {
+		this.recordQueueTimeAvg = recordQueueTimeAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average request latency in milliseconds.")
+	public void setRequestLatencyAvg(Metric requestLatencyAvg) {
+		this.requestLatencyAvg = requestLatencyAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Total amount of buffer memory in bytes that is not being used.")
+	public void setBufferAvailableBytes(Metric bufferAvailableBytes) {
+		this.bufferAvailableBytes = bufferAvailableBytes;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average compression rate of record batches, in percent of the uncompressed size.")
+	public void setCompressionRateAvg(Metric compressionRateAvg) {
+		this.compressionRateAvg = compressionRateAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Number of messages that could not be sent to Kafka.")
+	public void setnFailedSends(Metric nFailedSends) {
+		this.nFailedSends = nFailedSends;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Total time in milliseconds the operator was blocked sending messages "
+			+ "to the producer, waiting for buffer memory or topic metadata.")
+	public void setSendBlockedTime(Metric sendBlockedTime) {
+		this.sendBlockedTime = sendBlockedTime;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Number of tuples submitted to the error output port, or messages spilled "
+			+ "to a local file, because the producer's buffer memory was exhausted.")
+	public void setnOverflowTuples(Metric nOverflowTuples) {
+		this.nOverflowTuples = nOverflowTuples;
+	}
 	
 	@Parameter(name="topic", cardinality=-1, optional=true, 
 			description="Topic to be published to. A topic can also be specified as an input stream attribute.")
@@ -59,12 +182,101 @@ public class KafkaSink extends KafkaBaseOper {
 		topicAH.setName(value);
 	}
 	
+	@Parameter(optional=true, description="Maximum number of messages sent to Kafka and not acknowledged yet. When reached, "
+			+ "processing of tuples blocks until messages are acknowledged. In a consistent region, this bounds the number of messages "
+			+ "the operator waits for when draining, so that large linger.ms and batch.size values can be used. "
+			+ "Default is 0, which leaves the number bounded only by the buffer.memory producer property.")
+	public void setMaxInFlightMessages(int value) {
+		this.maxInFlightMessages = value;
+	}
+	
+	@Parameter(optional=true, description="If true, messages without a key are sent to the same partition of a topic until about "
+			+ "batch.size bytes have been sent to it or linger.ms has expired, before moving on to the next partition. This results "
+			+ "in larger batches and fewer requests than spreading every message over the partitions. Messages with a key are "
+			+ "partitioned by the hash of the key as before. Ignored if the partitioner.class property is specified. Default is false.")
+	public void setStickyPartitioning(boolean value) {
+		this.stickyPartitioning = value;
+	}
+	
+	@Parameter(optional=true, description="If true, KafkaProducer operators fused into the same PE with identical Kafka properties "
+			+ "share one Kafka producer, and so its record batches, sender thread and broker connections. The producer is closed "
+			+ "when the last of these operators shuts down. Draining in a consistent region flushes the messages of all operators "
+			+ "sharing the producer. Default is false.")
+	public void setSharedProducer(boolean value) {
+		this.sharedProducer = value;
+	}
+	
+	@Parameter(optional=true, description="Number of Kafka producers the operator sends through, each with its own sender thread. "
+			+ "Messages with a key are assigned to a producer by the hash of the key, so the messages of a key keep their order. "
+			+ "Messages without a key are given to the producer with the fewest messages not acknowledged yet. Increase it together "
+			+ "with threaded input ports when a single sender thread limits the throughput. Default is 1.")
+	public void setProducerCount(int value) {
+		this.producerCount = value;
+	}
+	
+	@Parameter(optional=true, description="What to do with a tuple when the buffer memory of the producer is exhausted. "
+			+ "With `block`, sending waits for buffer memory up to max.block.ms, which blocks the upstream operators. "
+			+ "With `errorPort`, the tuple is submitted to the error output port, which is then required. "
+			+ "With `spill`, the messages are written to a file in the data directory of the PE and sent, in order, once buffer "
+			+ "memory has been freed; spilled messages are sent before a consistent region drain completes. Default is block.")
+	public void setOverflowPolicy(OverflowPolicy value) {
+		this.overflowPolicy = value;
+	}
+	
+	@Parameter(optional=true, description="Target in milliseconds for the average time messages wait in the producer before they "
+			+ "are sent. If specified, the operator tunes the linger.ms and batch.size producer properties from the producer metrics: "
+			+ "linger.ms is lowered when messages wait longer than the target, batch.size is raised when batches are full, and "
+			+ "linger.ms is raised when batches are mostly empty and latency is to spare. The producer is recreated with the "
+			+ "new properties, at most every " + ProducerTuner.TUNING_PERIODS * KAFKA_METRICS_PERIOD + " seconds. "
+			+ "With sharedProducer, an operator whose properties are tuned no longer shares its producer. By default, "
+			+ "the properties are not tuned.")
+	public void setTargetLatency(int value) {
+		this.targetLatency = value;
+	}
+	
+	@Parameter(optional=true, description="Upper bound of the linger.ms producer property when tuned to targetLatency. Default is 100.")
+	public void setMaxLingerMs(int value) {
+		this.maxLingerMs = value;
+	}
+	
+	@Parameter(optional=true, description="Upper bound of the batch.size producer property when tuned to targetLatency. Default is 1048576.")
+	public void setMaxBatchSize(int value) {
+		this.maxBatchSize = value;
+	}
+	
+	@Parameter(optional=true, description="Maximum number of bytes of a message sent in one Kafka record. Larger messages are split into "
+			+ "chunks sent in order as records with the same key, which a KafkaConsumer with the reassembleChunks parameter reassembles into "
+			+ "one tuple. Every record gets a 25 byte header, so the value must leave room for it and the key within the message.max.bytes "
+			+ "broker setting and the max.request.size producer property. Requires the default or the ByteArray serializers. "
+			+ "Default is 0, which sends every message as one record without a header.")
+	public void setMaxChunkSize(int value) {
+		this.maxChunkSize = value;
+	}
+	
+	@Parameter(optional=true, description="Id of the Avro schema of the avroSchemaFile parameter. If specified, every message starts with a "
+			+ "zero byte and the id as a 4 byte big-endian integer, so that a KafkaConsumer with the avroSchemaDirectory parameter reads it "
+			+ "with that schema. By default, messages have no prefix.")
+	public void setAvroSchemaId(int value) {
+		this.avroSchemaId = value;
+	}
+	
 	@ContextCheck(compile=true)
 	public static boolean topicChecker(OperatorContextChecker checker) {
 		return checker.checkExcludedParameters("topic", "topicAttribute") && //$NON-NLS-1$ //$NON-NLS-2$
 			   checker.checkExcludedParameters("topicAttribute", "topic"); //$NON-NLS-1$ //$NON-NLS-2$
 	}
 	
+	@ContextCheck(compile = true)
+	public static void checkProducerTuning(OperatorContextChecker checker) {
+		checker.checkDependentParameters("maxLingerMs", "targetLatency"); //$NON-NLS-1$ //$NON-NLS-2$
+		checker.checkDependentParameters("maxBatchSize", "targetLatency"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	@ContextCheck(compile = true)
+	public static void checkAvro(OperatorContextChecker checker) {
+		checker.checkDependentParameters("avroSchemaId", "avroSchemaFile"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
 	//consistent region checks
 	@ContextCheck(compile = true)
 	public static void checkInConsistentRegion(OperatorContextChecker checker) {
@@ -96,26 +308,132 @@ public class KafkaSink extends KafkaBaseOper {
 		if(topics.size() == 0 && !topicAH.isAvailable())
 			throw new IllegalArgumentException(Messages.getString("TOPIC_NOT_SPECIFIED")); //$NON-NLS-1$
 		
-		if(keyAH.isAvailable() && ( keyAH.isString() != messageAH.isString())) {
+		if(keyAH.isAvailable() && messageAH.isAvailable() && ( keyAH.isString() != messageAH.isString())) {
 			throw new IllegalArgumentException(Messages.getString("KEY_AND_MESSAGE_MUST_HAVE_COMPATIBLE_TYPES")); //$NON-NLS-1$
 		}
 		
+		if (avroSchema != null)
+			avroConverter = AvroTupleConverter.forEncoding(avroSchema, getInput(0).getStreamSchema(), getAvroExcludedAttributes(), avroSchemaId);
+		
+		if (overflowPolicy == OverflowPolicy.errorPort) {
+			if (context.getNumberOfStreamingOutputs() == 0)
+				throw new IllegalArgumentException(Messages.getString("OVERFLOW_POLICY_REQUIRES_ERROR_PORT")); //$NON-NLS-1$
+			errorOutputPort = getOutput(0);
+			StreamSchema errorSchema = errorOutputPort.getStreamSchema();
+			int attributeCount = errorSchema.getAttributeCount();
+			if (attributeCount < 1 || attributeCount > 2
+					|| errorSchema.getAttribute(attributeCount - 1).getType().getMetaType() != MetaType.RSTRING
+					|| (attributeCount == 2 && errorSchema.getAttribute(0).getType().getMetaType() != MetaType.TUPLE))
+				throw new IllegalArgumentException(Messages.getString("OVERFLOW_POLICY_REQUIRES_ERROR_PORT")); //$NON-NLS-1$
+			if (attributeCount == 2)
+				embeddedSchema = errorOutputPort.newTuple().getTuple(0).getStreamSchema();
+		} else if (overflowPolicy == OverflowPolicy.spill) {
+			spillBuffer = new SpillBuffer(context.getPE().getDataDirectory(), context.getName());
+		}
+		
+		if (producerCount < 1)
+			throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+					"producerCount", producerCount, 1, Integer.MAX_VALUE)); //$NON-NLS-1$
+		if (maxChunkSize < 0)
+			throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+					"maxChunkSize", maxChunkSize, 0, Integer.MAX_VALUE)); //$NON-NLS-1$
+		
+		if (targetLatency != 0) {
+			if (targetLatency < 1)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"targetLatency", targetLatency, 1, Integer.MAX_VALUE)); //$NON-NLS-1$
+			if (maxLingerMs < 0)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"maxLingerMs", maxLingerMs, 0, Integer.MAX_VALUE)); //$NON-NLS-1$
+			if (maxBatchSize < 16384)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"maxBatchSize", maxBatchSize, 16384, Integer.MAX_VALUE)); //$NON-NLS-1$
+			producerTuner = new ProducerTuner(finalProperties, targetLatency, maxLingerMs, maxBatchSize);
+		}
+		
 		if(!topics.isEmpty())
 			trace.log(TraceLevel.INFO, "Topics: " + topics.toString()); //$NON-NLS-1$
 
 		trace.log(TraceLevel.INFO, "Initializing producer"); //$NON-NLS-1$
-		producerClient = getNewProducerClient(topicAH, keyAH, messageAH, finalProperties);
+		producerClient = getNewProducerClient();
 		
 		// register for data governance
 		// only register user specified topic in param
 		registerForDataGovernance();
+		
+		context.getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				updateKafkaMetrics();
+			}
+			
+		}, KAFKA_METRICS_PERIOD, KAFKA_METRICS_PERIOD, TimeUnit.SECONDS);
+		
+		if (spillBuffer != null) {
+			// Replays spilled messages while no tuples arrive
+			context.getScheduledExecutorService().scheduleWithFixedDelay(new Runnable() {
+
+				@Override
+				public void run() {
+					producerLock.readLock().lock();
+					try {
+						producerClient.replaySpilled(false);
+					} catch (Exception e) {
+						trace.log(TraceLevel.ERROR, "Could not replay spilled messages: " + e.getMessage()); //$NON-NLS-1$
+					} finally {
+						producerLock.readLock().unlock();
+					}
+				}
+				
+			}, SPILL_REPLAY_PERIOD, SPILL_REPLAY_PERIOD, TimeUnit.MILLISECONDS);
+		}
 	}
 	
-	private static KafkaProducerClient getNewProducerClient(AttributeHelper topicAH, AttributeHelper keyAH, AttributeHelper messageAH, Properties finalProperties) {
+	private KafkaProducerClient getNewProducerClient() {
+		if (stickyPartitioning && !finalProperties.containsKey("partitioner.class")) //$NON-NLS-1$
+			finalProperties.put("partitioner.class", StickyPartitioner.class.getName()); //$NON-NLS-1$
+		if (producerTuner != null)
+			producerTuner.apply(finalProperties);
 		KafkaProducerFactory producerFactory = new KafkaProducerFactory();
-		KafkaProducerClient producerClient = producerFactory.getClient(topicAH, keyAH, messageAH, finalProperties);
+		KafkaProducerClient producerClient = producerFactory.getClient(topicAH, keyAH, messageAH, finalProperties, sharedProducer, producerCount);
+		producerClient.setFailedSendsMetric(nFailedSends);
+		producerClient.setMaxInFlightMessages(maxInFlightMessages);
+		producerClient.setSendBlockedTimeMetric(sendBlockedTime);
+		producerClient.setSpillBuffer(spillBuffer, nOverflowTuples);
+		producerClient.setMaxChunkSize(maxChunkSize);
+		producerClient.setAvroConverter(avroConverter);
 		return producerClient;
 	}
+	
+	private void updateKafkaMetrics() {
+		Map<String, Double> values;
+		producerLock.readLock().lock();
+		try {
+			values = producerClient.getProducerMetrics();
+		} catch (Exception e) {
+			// Metrics are informational, try again next period
+			trace.log(TraceLevel.DEBUG, "Unable to read Kafka metrics: " + e); //$NON-NLS-1$
+			return;
+		} finally {
+			producerLock.readLock().unlock();
+		}
+		setMetricValue(recordSendRate, values.get("record-send-rate"), 1); //$NON-NLS-1$
+		setMetricValue(batchSizeAvg, values.get("batch-size-avg"), 1); //$NON-NLS-1$
+		setMetricValue(recordsPerRequestAvg, values.get("records-per-request-avg"), 1); //$NON-NLS-1$
+		setMetricValue(recordQueueTimeAvg, values.get("record-queue-time-avg"), 1); //$NON-NLS-1$
+		setMetricValue(requestLatencyAvg, values.get("request-latency-avg"), 1); //$NON-NLS-1$
+		setMetricValue(bufferAvailableBytes, values.get("buffer-available-bytes"), 1); //$NON-NLS-1$
+		setMetricValue(compressionRateAvg, values.get("compression-rate-avg"), 100); //$NON-NLS-1$
+		
+		if (producerTuner != null && producerTuner.update(values))
+			producerRetuned = true;
+	}
+	
+	private static void setMetricValue(Metric metric, Double value, int scale) {
+		if (value != null)
+			metric.setValue(Math.round(value * scale));
+	}
 
 	private void registerForDataGovernance() {
 		trace.log(TraceLevel.INFO, "KafkaSink -- Registering for data governance"); //$NON-NLS-1$
@@ -134,19 +452,45 @@ public class KafkaSink extends KafkaBaseOper {
 	
 	@Override
 	public void process(StreamingInput<Tuple> stream, Tuple tuple) throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException{
+		if (producerRetuned) {
+			producerLock.writeLock().lock();
+			try {
+				// Another thread may have recreated the producer meanwhile
+				if (producerRetuned) {
+					producerRetuned = false;
+					trace.log(TraceLevel.INFO, "Producer properties have been tuned. Initializing producer with new properties."); //$NON-NLS-1$
+					resetProducerClient(getOperatorContext());
+				}
+			} finally {
+				producerLock.writeLock().unlock();
+			}
+		}
+		
+		boolean sent = false;
+		producerLock.readLock().lock();
 		try {	
 			if(trace.isLoggable(TraceLevel.DEBUG))
 				trace.log(TraceLevel.DEBUG, "Sending message: " + tuple); //$NON-NLS-1$
 			
+			if (errorOutputPort != null && producerClient.isBufferExhausted()) {
+				submitOverflowTuple(tuple);
+				return;
+			}
+			
 			if(!topics.isEmpty()) 
 				producerClient.send(tuple, topics);
 			else 
 				producerClient.send(tuple);
+			sent = true;
 		} catch(Exception e) {
 			trace.log(TraceLevel.ERROR, "Could not send message: " + tuple, e); //$NON-NLS-1$
 			e.printStackTrace();
-			resetProducerIfPropertiesHaveChanged();
+		} finally {
+			producerLock.readLock().unlock();
 		}
+		// The read lock must be released before the producer can be replaced
+		if (!sent)
+			resetProducerIfPropertiesHaveChanged();
 		
 		if(producerClient.hasMessageException() == true){
 			trace.log(TraceLevel.WARN, "Found message exception"); //$NON-NLS-1$
@@ -154,6 +498,21 @@ public class KafkaSink extends KafkaBaseOper {
 		}
 
 	}
+	private void submitOverflowTuple(Tuple tuple) throws Exception {
+		if(trace.isLoggable(TraceLevel.DEBUG))
+			trace.log(TraceLevel.DEBUG, "Producer buffer memory exhausted, submitting to error port: " + tuple); //$NON-NLS-1$
+		OutputTuple errorTuple = errorOutputPort.newTuple();
+		String errorMessage = "Producer buffer memory exhausted"; //$NON-NLS-1$
+		if (embeddedSchema != null) {
+			errorTuple.setTuple(0, embeddedSchema.getTuple(tuple));
+			errorTuple.setString(1, errorMessage);
+		} else {
+			errorTuple.setString(0, errorMessage);
+		}
+		errorOutputPort.submit(errorTuple);
+		nOverflowTuples.increment();
+	}
+	
 	private void resetProducerIfPropertiesHaveChanged()
 			throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException {
 		OperatorContext context = this.getOperatorContext();
@@ -172,8 +531,86 @@ public class KafkaSink extends KafkaBaseOper {
 		// Not catching exceptions because we want to fail
 		// if we can't initialize a new producer
 		getKafkaProperties(context);
-		producerClient.shutdown();
-		producerClient = getNewProducerClient(topicAH, keyAH, messageAH, finalProperties);
+		producerLock.writeLock().lock();
+		try {
+			KafkaProducerClient oldProducerClient = producerClient;
+			oldProducerClient.shutdown();
+			producerClient = getNewProducerClient();
+			// Failures of the old producer still fail the next drain
+			producerClient.inheritSendException(oldProducerClient);
+		} finally {
+			producerLock.writeLock().unlock();
+		}
+	}
+	
+	@Override
+	public void shutdown() throws Exception {
+		producerLock.writeLock().lock();
+		try {
+			if (producerClient != null) {
+				if (spillBuffer != null) {
+					producerClient.replaySpilled(true);
+					spillBuffer.close();
+				}
+				producerClient.shutdown();
+			}
+		} finally {
+			producerLock.writeLock().unlock();
+		}
+		super.shutdown();
+	}
+	
+	@Override
+	public void close() throws IOException {
+	}
+
+	@Override
+	public void checkpoint(Checkpoint checkpoint) throws Exception {
+	}
+
+	/*
+	 * Messages still buffered by the producer are not covered by the
+	 * checkpoint until Kafka has acknowledged them.
+	 */
+	@Override
+	public void drain() throws Exception {
+		trace.log(TraceLevel.INFO, "Draining..."); //$NON-NLS-1$
+		producerLock.readLock().lock();
+		try {
+			producerClient.drain();
+		} catch (Exception e) {
+			trace.log(TraceLevel.ERROR, "Messages could not be sent before the checkpoint: " + e.getMessage()); //$NON-NLS-1$
+			throw e;
+		} finally {
+			producerLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void reset(Checkpoint checkpoint) throws Exception {
+		trace.log(TraceLevel.INFO, "Resetting..."); //$NON-NLS-1$
+		// Messages since the checkpoint are replayed
+		producerLock.readLock().lock();
+		try {
+			producerClient.resetSendException();
+		} finally {
+			producerLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void resetToInitialState() throws Exception {
+		trace.log(TraceLevel.INFO, "Resetting to initial state..."); //$NON-NLS-1$
+		producerLock.readLock().lock();
+		try {
+			producerClient.resetSendException();
+		} finally {
+			producerLock.readLock().unlock();
+		}
+	}
+
+	@Override
+	public void retireCheckpoint(long id) throws Exception {
 	}
 
 	public static final String DESC = "**DEPRECATED**: " + KafkaSink.DEPRECATION_MESSAGE + "\\n" + //$NON-NLS-1$
@@ -186,6 +623,8 @@ public class KafkaSink extends KafkaBaseOper {
 			BASE_DESC + // common description between Source and Sink
 			"\\n\\n**Behavior in a Consistent Region**" +  //$NON-NLS-1$
 			"\\nThis operator can participate in a consistent region.  This operator cannot be placed at the start of a consistent region. " //$NON-NLS-1$
-			+ "The KafkaProducer guarantees at-least-once delivery of messages to a Kafka topic." //$NON-NLS-1$
+			+ "The KafkaProducer guarantees at-least-once delivery of messages to a Kafka topic. " //$NON-NLS-1$
+			+ "On drain, the operator flushes the producer and waits for all messages to be acknowledged. If any message " //$NON-NLS-1$
+			+ "could not be sent since the last checkpoint, the drain fails and the region is reset." //$NON-NLS-1$
 			;
 }
@@ -8,10 +8,13 @@ package com.ibm.streamsx.messaging.kafka;
 
 import static java.lang.String.format;
 
+import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -19,25 +22,42 @@ import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.clients.consumer.OffsetCommitCallback;
 import org.apache.kafka.common.KafkaException;
+import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.errors.WakeupException;
 
+import com.ibm.streams.operator.Attribute;
 import com.ibm.streams.operator.OperatorContext;
 import com.ibm.streams.operator.OperatorContext.ContextCheck;
 import com.ibm.streams.operator.OutputTuple;
 import com.ibm.streams.operator.StreamSchema;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingInput;
 import com.ibm.streams.operator.StreamingOutput;
+import com.ibm.streams.operator.Tuple;
+import com.ibm.streams.operator.Type.MetaType;
 import com.ibm.streams.operator.compile.OperatorContextChecker;
 import com.ibm.streams.operator.logging.LogLevel;
 import com.ibm.streams.operator.logging.TraceLevel;
 import com.ibm.streams.operator.metrics.Metric;
 import com.ibm.streams.operator.metrics.Metric.Kind;
 import com.ibm.streams.operator.metrics.OperatorMetrics;
+import com.ibm.streams.operator.model.CustomMetric;
 import com.ibm.streams.operator.model.Icons;
+import com.ibm.streams.operator.model.InputPortSet;
+import com.ibm.streams.operator.model.InputPorts;
 import com.ibm.streams.operator.model.OutputPortSet;
 import com.ibm.streams.operator.model.OutputPorts;
 import com.ibm.streams.operator.model.Parameter;
@@ -48,8 +68,15 @@ import com.ibm.streams.operator.state.StateHandler;
 import com.ibm.streamsx.messaging.common.DataGovernanceUtil;
 import com.ibm.streamsx.messaging.common.IGovernanceConstants;
 
-@OutputPorts(@OutputPortSet(cardinality=1, optional=false, 
-	description="Messages received from Kafka are sent on this output port."))
+@InputPorts(@InputPortSet(cardinality=1, optional=true, controlPort=true, 
+	description="Optional control port changing the rate of the throttle at runtime. Tuples must have a numeric attribute named rate, "
+			+ "the new rate in the unit of the maxMessageRate or maxByteRate parameter, in messages per second if neither is specified. "
+			+ "A rate of 0 or less disables the throttle."))
+@OutputPorts({@OutputPortSet(cardinality=1, optional=false, 
+	description="Messages received from Kafka are sent on this output port."),
+	@OutputPortSet(cardinality=-1, optional=true, 
+	description="Additional output ports, with the same schema as the first one. Messages are routed to the ports by partition, "
+			+ "or by key with the routeByKey parameter.")})
 @PrimitiveOperator(name=KafkaSource.OPER_NAME, description=KafkaSource.DESC)
 @Icons(location16="icons/KafkaConsumer_deprecated_16.gif", location32="icons/KafkaConsumer_deprecated_32.gif")
 public class KafkaSource extends KafkaBaseOper implements StateHandler{
@@ -64,20 +91,96 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 	}
 	
 	static final String OPER_NAME = "KafkaConsumer"; //$NON-NLS-1$
-	// private int threadsPerTopic = 1;
+	private static final String BYTE_ARRAY_DESERIALIZER = "org.apache.kafka.common.serialization.ByteArrayDeserializer"; //$NON-NLS-1$
+	// Default max.partition.fetch.bytes when reading up to end offsets
+	private static final String BOUNDED_FETCH_BYTES = "10485760"; //$NON-NLS-1$
+	private int consumerThreads = 1;
+	private boolean assignPartitionsByChannel = false;
+	private int channel = 0;
+	private int maxChannels = 1;
 	private List<Integer> partitions = new ArrayList<Integer>();
 	private static Logger trace = Logger.getLogger(KafkaSource.class.getName());
 	private final AtomicBoolean shutdown = new AtomicBoolean(false);
-	private AtomicBoolean consumerIsShutdown = new AtomicBoolean(false);
+	private CountDownLatch consumersShutdown;
 	
-	@SuppressWarnings("rawtypes")
-	KafkaConsumerClient streamsKafkaConsumer;
+	/*
+	 * One client per consumer thread. Client i reads partitions
+	 * clientPartitions.get(i), or shares the topic subscription
+	 * with the others when no partitions are specified.
+	 */
+	List<KafkaConsumerClient<?,?>> streamsKafkaConsumers;
+	private List<List<Integer>> clientPartitions;
 	private int consumerPollTimeout = 100;
+	private int pollBufferSize = 0;
+	private int pauseThreshold = 0;
+	private int resumeThreshold = -1;
 	private int triggerCount = -1;
-	Thread processThread;
+	private double triggerPeriod = -1;
+	private long triggerBytes = -1;
+	private boolean reassembleChunks = false;
+	private int chunkTimeout = 60000;
+	private long reassemblyBufferSize = 268435456;
+	private ChunkReassembler reassembler;
+	private long[] startOffsets;
+	private long[] endOffsets;
+	private OffsetRange offsetRange;
+	private final AtomicInteger finishedConsumers = new AtomicInteger();
+	private boolean bootstrapSnapshot = false;
+	private volatile SnapshotReader snapshotReader;
+	// End offsets of the snapshot for the partitions no consumer has been assigned yet
+	private final Map<TopicPartition, Long> snapshotOffsets = new ConcurrentHashMap<TopicPartition, Long>();
+	private String avroSchemaDirectory;
+	private List<String> filterKeys;
+	private String filterKeyPrefix;
+	private String filterMessagePrefix;
+	private String filterKeyPattern;
+	private RecordFilter filter;
+	private boolean routeByKey = false;
+	private boolean commitOnRegionCheckpoint = false;
+	private double maxMessageRate = -1;
+	private double maxByteRate = -1;
+	private Throttle throttle;
+	private int rateAttributeIndex;
+	
+	/*
+	 * Results of the commits of region checkpointed offsets, run by the
+	 * threads polling the consumers.
+	 */
+	private final OffsetCommitCallback commitCallback = new OffsetCommitCallback() {
+
+		@Override
+		public void onComplete(Map<TopicPartition, OffsetAndMetadata> offsets, Exception exception) {
+			if (exception == null) {
+				if (trace.isLoggable(TraceLevel.DEBUG))
+					trace.log(TraceLevel.DEBUG, "Committed region checkpoint offsets: " + offsets); //$NON-NLS-1$
+				return;
+			}
+			// A later region checkpoint commits newer offsets
+			trace.log(TraceLevel.WARN, "Could not commit region checkpoint offsets: " + offsets + ": " + exception.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+			if (nFailedOffsetCommits != null)
+				nFailedOffsetCommits.increment();
+		}
+		
+	};
+	private OutputRouter outputRouter;
+	List<Thread> processThreads = new ArrayList<Thread>();
 	
 	private ConsistentRegionContext crContext;
-	private long triggerIteration = 0;
+	
+	/*
+	 * Operator driven checkpoints, guarded by triggerLock. A checkpoint is
+	 * made once triggerCount messages, triggerBytes bytes or triggerPeriod
+	 * seconds since the first message have accumulated since the last one,
+	 * whichever comes first. Without any of them, every batch is checkpointed.
+	 */
+	private final Object triggerLock = new Object();
+	private long triggerMessages = 0;
+	private long triggerMessageBytes = 0;
+	private long firstTriggerMessageTime;
+	
+	// Start of the current region checkpoint, 0 when none is in progress
+	private volatile long drainStartTime = 0;
+	private DurationHistogram checkpointDurations;
 	
 	/*
 	 * Consistent region specific state.
@@ -86,32 +189,101 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 	 * Offset maps at the end of a checkpoint for this operator,
 	 * keyed by sequence identifier.
 	 */
-	private Map<Long,Map<Integer,Long>> ckptOffsetMaps;
+	private Map<Long,Map<TopicPartition,Long>> ckptOffsetMaps;
 	
 	/**
 	 * Metrics for consistent region maintaining the offsets for the partitions.
 	 * topicStartingOffsetsMetrics - Offset the consumer started at or was last reset to.
 	 * topicCkptOffsetsMetrics - Offset at the last checkpoint of this operator.
 	 * topicRegionCkptOffsetsMetrics - Offset at the last region completed checkpoint.
+	 * Metrics are created when a partition first appears in an offset map, as
+	 * partitions assigned by the consumer group are not known up front.
 	 */
-    private Map<Integer,Metric> startingOffsetsMetrics;
-    private Map<Integer,Metric> ckptOffsetsMetrics;
-    private Map<Integer,Metric> regionCkptOffsetsMetrics;
+    private Map<TopicPartition,Metric> startingOffsetsMetrics;
+    private Map<TopicPartition,Metric> ckptOffsetsMetrics;
+    private Map<TopicPartition,Metric> regionCkptOffsetsMetrics;
+    
+	/*
+	 * Kafka consumer metrics, copied from the consumers every
+	 * KAFKA_METRICS_PERIOD seconds. Rates are summed over the
+	 * consumers of the operator, latency is averaged.
+	 */
+	private Metric recordsLagMax;
+	private Metric fetchRate;
+	private Metric bytesConsumedRate;
+	private Metric fetchLatencyAvg;
+	private Metric nIncompleteMessages;
+	private Metric nRecordsFiltered;
+	private Metric nFailedOffsetCommits;
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Maximum lag in number of records of any partition read by the operator.")
+	public void setRecordsLagMax(Metric recordsLagMax) {
+		this.recordsLagMax = recordsLagMax;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Number of fetch requests per second, rounded.")
+	public void setFetchRate(Metric fetchRate) {
+		this.fetchRate = fetchRate;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Number of bytes consumed per second.")
+	public void setBytesConsumedRate(Metric bytesConsumedRate) {
+		this.bytesConsumedRate = bytesConsumedRate;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.GAUGE, description = "Average time taken for a fetch request in milliseconds.")
+	public void setFetchLatencyAvg(Metric fetchLatencyAvg) {
+		this.fetchLatencyAvg = fetchLatencyAvg;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Number of chunked messages discarded before all their chunks were received, "
+			+ "because they timed out or did not fit in the reassembly buffer.")
+	public void setnIncompleteMessages(Metric nIncompleteMessages) {
+		this.nIncompleteMessages = nIncompleteMessages;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Number of messages not submitted because they did not pass the filter parameters.")
+	public void setnRecordsFiltered(Metric nRecordsFiltered) {
+		this.nRecordsFiltered = nRecordsFiltered;
+	}
+	
+	@CustomMetric(kind = Metric.Kind.COUNTER, description = "Number of commits of region checkpoint offsets to the consumer group that failed.")
+	public void setnFailedOffsetCommits(Metric nFailedOffsetCommits) {
+		this.nFailedOffsetCommits = nFailedOffsetCommits;
+	}
 	
-	//consistent region checks
 	@ContextCheck(compile = true)
-	public static void checkInConsistentRegion(OperatorContextChecker checker) {
-		ConsistentRegionContext consistentRegionContext = 
-				checker.getOperatorContext().getOptionalContext(ConsistentRegionContext.class);
-		OperatorContext operContext = checker.getOperatorContext();
-
-		if(consistentRegionContext != null ) {
-			if (!operContext.getParameterNames().contains("partition")){ //$NON-NLS-1$
-				checker.setInvalidContext(Messages.getString("PARTITION_PARAM_MUST_BE_SPECIFIED_IN_CONSISTENT_REGION"), new String[] {}); //$NON-NLS-1$
-			}
-		}
+	public static boolean checkPartitionAssignment(OperatorContextChecker checker) {
+		return checker.checkExcludedParameters("partition", "assignPartitionsByChannel"); //$NON-NLS-1$ //$NON-NLS-2$
 	}
-
+	
+	@ContextCheck(compile = true)
+	public static boolean checkSnapshot(OperatorContextChecker checker) {
+		return checker.checkExcludedParameters("bootstrapSnapshot", "startOffset", "endOffset", "reassembleChunks"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$
+	}
+	
+	@ContextCheck(compile = true)
+	public static boolean checkThrottle(OperatorContextChecker checker) {
+		return checker.checkExcludedParameters("maxMessageRate", "maxByteRate"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	@ContextCheck(compile = true)
+	public static void checkAvro(OperatorContextChecker checker) {
+		checker.checkDependentParameters("avroSchemaDirectory", "avroSchemaFile"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	@ContextCheck(compile = true)
+	public static void checkChunkReassembly(OperatorContextChecker checker) {
+		checker.checkDependentParameters("chunkTimeout", "reassembleChunks"); //$NON-NLS-1$ //$NON-NLS-2$
+		checker.checkDependentParameters("reassemblyBufferSize", "reassembleChunks"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
+	@ContextCheck(compile = true)
+	public static void checkFlowControl(OperatorContextChecker checker) {
+		checker.checkDependentParameters("pauseThreshold", "pollBufferSize"); //$NON-NLS-1$ //$NON-NLS-2$
+		checker.checkDependentParameters("resumeThreshold", "pauseThreshold"); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+	
 	@ContextCheck(runtime = true, compile = false)
 	public static void checkRuntimeCompatability(OperatorContextChecker checker) {
 		OperatorContext operContext = checker.getOperatorContext();
@@ -146,16 +318,93 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 		super.initialize(context);
 		super.initSchema(getOutput(0).getStreamSchema());
 
+		if (consumerThreads < 1)
+			throw new IllegalArgumentException(
+					Messages.getString("NUMBER_OF_THREADS_CANNOT_BE_LESS_THAN_ONE", consumerThreads )); //$NON-NLS-1$
+		
+		// Each partition is read by exactly one thread
+		if (!partitions.isEmpty() && consumerThreads > partitions.size()) {
+			trace.log(TraceLevel.WARN, "Reducing consumerThreads from " + consumerThreads + " to the " //$NON-NLS-1$ //$NON-NLS-2$
+					+ partitions.size() + " specified partitions."); //$NON-NLS-1$
+			consumerThreads = partitions.size();
+		}
+		// A full poll buffer must not keep the consumer from polling
+		if (pollBufferSize > 0 && pauseThreshold == 0)
+			pauseThreshold = pollBufferSize;
+		if (pauseThreshold > 0) {
+			if (pauseThreshold > pollBufferSize)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"pauseThreshold", pauseThreshold, 1, pollBufferSize)); //$NON-NLS-1$
+			if (resumeThreshold < 0)
+				resumeThreshold = pauseThreshold / 2;
+			else if (resumeThreshold >= pauseThreshold)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"resumeThreshold", resumeThreshold, 0, pauseThreshold - 1)); //$NON-NLS-1$
+		}
+		if (startOffsets != null || endOffsets != null) {
+			checkOffsets("startOffset", startOffsets, OffsetRange.BEGINNING); //$NON-NLS-1$
+			checkOffsets("endOffset", endOffsets, OffsetRange.END); //$NON-NLS-1$
+			offsetRange = new OffsetRange(partitions, startOffsets, endOffsets);
+		}
+		if (maxMessageRate != -1 || maxByteRate != -1 || context.getNumberOfStreamingInputs() > 0) {
+			throttle = new Throttle(Math.max(maxMessageRate, maxByteRate), maxByteRate != -1);
+			if (context.getNumberOfStreamingInputs() > 0)
+				rateAttributeIndex = getRateAttributeIndex(getInput(0).getStreamSchema());
+		}
+		if (triggerPeriod != -1 && triggerPeriod <= 0)
+			throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+					"triggerPeriod", triggerPeriod, Double.MIN_VALUE, Double.MAX_VALUE)); //$NON-NLS-1$
+		if (triggerBytes != -1 && triggerBytes < 1)
+			throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+					"triggerBytes", triggerBytes, 1, Long.MAX_VALUE)); //$NON-NLS-1$
+		if (reassembleChunks) {
+			if (chunkTimeout < 1)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"chunkTimeout", chunkTimeout, 1, Integer.MAX_VALUE)); //$NON-NLS-1$
+			if (reassemblyBufferSize < 1)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						"reassemblyBufferSize", reassemblyBufferSize, 1, Long.MAX_VALUE)); //$NON-NLS-1$
+			reassembler = new ChunkReassembler(chunkTimeout, reassemblyBufferSize);
+			reassembler.setIncompleteMessagesMetric(nIncompleteMessages);
+		}
+		StreamSchema outputSchema = getOutput(0).getStreamSchema();
+		for (StreamingOutput<OutputTuple> output : context.getStreamingOutputs()) {
+			if (!output.getStreamSchema().equals(outputSchema))
+				throw new IllegalArgumentException(Messages.getString("OUTPUT_PORTS_MUST_HAVE_SAME_SCHEMA")); //$NON-NLS-1$
+		}
+		outputRouter = new OutputRouter(context.getStreamingOutputs(), routeByKey);
+		if (filterKeys != null || filterKeyPrefix != null || filterMessagePrefix != null || filterKeyPattern != null) {
+			filter = new RecordFilter();
+			if (filterKeys != null)
+				filter.setKeys(filterKeys);
+			if (filterKeyPrefix != null)
+				filter.setKeyPrefix(filterKeyPrefix);
+			if (filterMessagePrefix != null)
+				filter.setMessagePrefix(filterMessagePrefix);
+			if (filterKeyPattern != null)
+				filter.setKeyPattern(filterKeyPattern);
+			filter.setFilteredRecordsMetric(nRecordsFiltered);
+		}
+		
+		clientPartitions = new ArrayList<List<Integer>>(consumerThreads);
+		for (int i = 0; i < consumerThreads; i++)
+			clientPartitions.add(new ArrayList<Integer>());
+		for (int i = 0; i < partitions.size(); i++)
+			clientPartitions.get(i % consumerThreads).add(partitions.get(i));
 
-//		if (threadsPerTopic < 1)
-//			throw new IllegalArgumentException(
-//					Messages.getString("NUMBER_OF_THREADS_CANNOT_BE_LESS_THAN_ONE", threadsPerTopic )); //$NON-NLS-1$
-
+		if (assignPartitionsByChannel && context.getChannel() >= 0) {
+			channel = context.getChannel();
+			maxChannels = context.getMaxChannels();
+			trace.log(TraceLevel.INFO, "Assigning partitions for channel " + channel + " of " + maxChannels); //$NON-NLS-1$ //$NON-NLS-2$
+		}
 
-		// initialize the client
-		trace.log(TraceLevel.INFO, "Initializing source client"); //$NON-NLS-1$
-		streamsKafkaConsumer = getNewConsumerClient(topicAH, keyAH, messageAH,
-				partitions, consumerPollTimeout, finalProperties, getOutput(0), topics);
+		// initialize the clients
+		trace.log(TraceLevel.INFO, "Initializing " + consumerThreads + " source client(s)"); //$NON-NLS-1$ //$NON-NLS-2$
+		streamsKafkaConsumers = new CopyOnWriteArrayList<KafkaConsumerClient<?,?>>();
+		for (int i = 0; i < consumerThreads; i++) {
+			streamsKafkaConsumers.add(getNewConsumerClient(i));
+		}
+		consumersShutdown = new CountDownLatch(consumerThreads);
 		
 		// Get consistent region context 
 		crContext = getOperatorContext()
@@ -166,11 +415,70 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 		// Maintain metrics for the offsets in a consistent region.
 		if (crContext != null) {
 		    createConsistentRegionMetrics();
-		    updateMetricsFromOffsetMap(startingOffsetsMetrics,
-		            streamsKafkaConsumer.getOffsetPositions());
+		    checkpointDurations = new DurationHistogram(context.getMetrics(), "checkpointDuration", "region checkpoints"); //$NON-NLS-1$ //$NON-NLS-2$
+		    updateMetricsFromOffsetMap(startingOffsetsMetrics, "topicStartingOffset:%s[%d]", //$NON-NLS-1$
+		    		"Starting offsets for consistent region.", getOffsetPositions());
 		}
 	}
 	
+	private static int getRateAttributeIndex(StreamSchema controlSchema) {
+		Attribute rateAttribute = controlSchema.getAttribute("rate"); //$NON-NLS-1$
+		if (rateAttribute == null)
+			throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_NOT_FOUND", "rate")); //$NON-NLS-1$ //$NON-NLS-2$
+		Set<MetaType> numericTypes = EnumSet.of(MetaType.INT8, MetaType.INT16, MetaType.INT32, MetaType.INT64,
+				MetaType.UINT8, MetaType.UINT16, MetaType.UINT32, MetaType.UINT64, MetaType.FLOAT32, MetaType.FLOAT64);
+		if (!numericTypes.contains(rateAttribute.getType().getMetaType()))
+			throw new IllegalArgumentException(Messages.getString("ATTRIBUTE_MUST_BE_ONE_OF", "rate", numericTypes)); //$NON-NLS-1$ //$NON-NLS-2$
+		return rateAttribute.getIndex();
+	}
+	
+	/*
+	 * Control port, changes the rate of the throttle.
+	 */
+	@Override
+	public void process(StreamingInput<Tuple> stream, Tuple tuple) throws Exception {
+		double rate = ((Number) tuple.getObject(rateAttributeIndex)).doubleValue();
+		trace.log(TraceLevel.INFO, "Changing the rate of the throttle from " + throttle.getRate() + " to " + rate); //$NON-NLS-1$ //$NON-NLS-2$
+		throttle.setRate(rate);
+	}
+	
+	private void checkOffsets(String parameterName, long[] offsets, long minOffset) {
+		if (offsets == null)
+			return;
+		if (offsets.length != 1 && offsets.length != partitions.size())
+			throw new IllegalArgumentException(Messages.getString("OFFSET_COUNT_MUST_MATCH_PARTITIONS", parameterName)); //$NON-NLS-1$
+		for (long offset : offsets) {
+			if (offset < minOffset)
+				throw new IllegalArgumentException(Messages.getString("PARAMETER_VALUE_OUT_OF_RANGE", //$NON-NLS-1$
+						parameterName, offset, minOffset, Long.MAX_VALUE));
+		}
+	}
+	
+	/*
+	 * Consumers of the same operator need distinct client ids
+	 * to avoid clashing registrations of their Kafka metrics.
+	 */
+	private Properties getClientProperties(int clientIndex) {
+		if (consumerThreads == 1 || !finalProperties.containsKey("client.id")) //$NON-NLS-1$
+			return finalProperties;
+		Properties clientProperties = new Properties();
+		clientProperties.putAll(finalProperties);
+		clientProperties.setProperty("client.id", finalProperties.getProperty("client.id") + "-" + clientIndex); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		return clientProperties;
+	}
+	
+	/**
+	 * Offsets of all the consumer clients, keyed by topic partition.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private Map<TopicPartition, Long> getOffsetPositions() throws InterruptedException {
+		// Partitions not assigned since the snapshot are still at its end
+		Map<TopicPartition, Long> offsetMap = new HashMap<TopicPartition, Long>(snapshotOffsets);
+		for (KafkaConsumerClient consumer : streamsKafkaConsumers)
+			offsetMap.putAll(consumer.getOffsetPositions());
+		return offsetMap;
+	}
+	
 	/**
 	 * Create a collection of metrics for consistent region.
 	 * Metrics representing offset map at:
@@ -184,49 +492,92 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
         startingOffsetsMetrics = new HashMap<>();
         ckptOffsetsMetrics = new HashMap<>();
         regionCkptOffsetsMetrics = new HashMap<>();
-
-        OperatorMetrics opMetrics = getOperatorContext().getMetrics();
-        
-        assert topics.size() == 1;
-        final String topic = topics.get(0);
-                
-        for (Integer partition : partitions) {
-            Metric metric = opMetrics.createCustomMetric(
-                    format("topicStartingOffset:%s[%d]", topic, partition),                   
-                    "Starting offsets for consistent region.", Kind.GAUGE);
-            startingOffsetsMetrics.put(partition, metric);
-            
-            metric = opMetrics.createCustomMetric(
-                    format("topicLastCheckpointOffset:%s[%d]", topic, partition),                   
-                    "Last checkpoint offsets for consistent region.", Kind.GAUGE);
-            ckptOffsetsMetrics.put(partition, metric);
-
-            metric = opMetrics.createCustomMetric(
-                    format("topicRegionCheckpointOffset:%s[%d]", topic, partition),                   
-                    "Region checkpoint offsets for consistent region.", Kind.GAUGE);
-            regionCkptOffsetsMetrics.put(partition, metric);
-        }
 	}
 	
 	/**
-	 * Update a set of metrics from an offsetMap, both are keyed by the partition.
+	 * Update a set of metrics from an offsetMap, both are keyed by the topic partition.
+	 * Metrics for partitions not seen before are created.
 	 * @param metrics Set of metrics to update
+	 * @param nameFormat Format of the metric name, from the topic and partition.
+	 * @param description Description of a created metric.
 	 * @param offsetMap Offset map to update the metrics.
 	 */
-    private static void updateMetricsFromOffsetMap(Map<Integer, Metric> metrics, Map<Integer, Long> offsetMap) {
-        for (Integer partition : offsetMap.keySet())
-            metrics.get(partition).setValue(offsetMap.get(partition));
+    private void updateMetricsFromOffsetMap(Map<TopicPartition, Metric> metrics, String nameFormat,
+    		String description, Map<TopicPartition, Long> offsetMap) {
+        OperatorMetrics opMetrics = getOperatorContext().getMetrics();
+        synchronized (metrics) {
+            for (TopicPartition partition : offsetMap.keySet()) {
+                Metric metric = metrics.get(partition);
+                if (metric == null) {
+                    metric = opMetrics.createCustomMetric(
+                            format(nameFormat, partition.topic(), partition.partition()),
+                            description, Kind.GAUGE);
+                    metrics.put(partition, metric);
+                }
+                metric.setValue(offsetMap.get(partition));
+            }
+        }
     }
 
     
+	@SuppressWarnings("rawtypes")
+	private KafkaConsumerClient getNewConsumerClient(int clientIndex) throws UnsupportedStreamsKafkaConfigurationException {
+		if (reassembler != null)
+			setByteArrayDeserializers(finalProperties, "reassembleChunks"); //$NON-NLS-1$
+		if (avroSchema != null)
+			setByteArrayDeserializers(finalProperties, "avroSchemaFile"); //$NON-NLS-1$
+		if (offsetRange != null && offsetRange.isBounded() && !finalProperties.containsKey("max.partition.fetch.bytes")) //$NON-NLS-1$
+			finalProperties.setProperty("max.partition.fetch.bytes", BOUNDED_FETCH_BYTES); //$NON-NLS-1$
+		// With assignment by channel, every consumer thread of every channel gets its own share.
+		// Offset ranges need assigned partitions too, a group could move them between consumers.
+		int assignmentCount = assignPartitionsByChannel ? maxChannels * consumerThreads
+				: offsetRange != null ? consumerThreads : 0;
+		KafkaConsumerClient kafkaConsumer = getNewConsumerClient(topicAH, keyAH, messageAH,
+				clientPartitions.get(clientIndex), consumerPollTimeout, getClientProperties(clientIndex), outputRouter, topics,
+				clientIndex * maxChannels + channel, assignmentCount, reassembler, offsetRange, newAvroConverter(), filter);
+		kafkaConsumer.setCommitCallback(commitCallback);
+		kafkaConsumer.setThrottle(throttle);
+		return kafkaConsumer;
+	}
+	
+	/*
+	 * Chunk headers and Avro records are binary, so their messages are read
+	 * as byte arrays whatever the types of the key and message attributes.
+	 */
+	private static void setByteArrayDeserializers(Properties props, String parameterName) {
+		for (String property : new String[] { "key.deserializer", "value.deserializer" }) { //$NON-NLS-1$ //$NON-NLS-2$
+			String deserializer = props.getProperty(property, BYTE_ARRAY_DESERIALIZER);
+			if (!deserializer.equals(BYTE_ARRAY_DESERIALIZER))
+				throw new IllegalArgumentException(Messages.getString("BYTE_ARRAY_SERIALIZATION_REQUIRED", parameterName)); //$NON-NLS-1$
+			props.setProperty(property, deserializer);
+		}
+	}
+	
+	/*
+	 * Converters reuse their decoding state, so each thread gets its own.
+	 */
+	private AvroTupleConverter newAvroConverter() {
+		if (avroSchema == null)
+			return null;
+		File schemaDirectory = avroSchemaDirectory == null ? null : new File(getAbsoluteFilePath(avroSchemaDirectory));
+		return AvroTupleConverter.forDecoding(avroSchema, getOutput(0).getStreamSchema(), getAvroExcludedAttributes(), schemaDirectory);
+	}
+    
 	@SuppressWarnings({ "rawtypes", "unchecked" })
 	private static KafkaConsumerClient getNewConsumerClient(AttributeHelper topicAH, AttributeHelper keyAH,
 			AttributeHelper messageAH, List<Integer> partitions, int consumerPollTimeout, Properties finalProperties,
-			StreamingOutput<OutputTuple> streamingOutput, List<String> topics) throws UnsupportedStreamsKafkaConfigurationException {
+			OutputRouter outputRouter, List<String> topics,
+			int assignmentIndex, int assignmentCount, ChunkReassembler reassembler, OffsetRange offsetRange,
+			AvroTupleConverter avroConverter, RecordFilter filter) throws UnsupportedStreamsKafkaConfigurationException {
 		KafkaConsumerFactory clientFactory = new KafkaConsumerFactory();
 		KafkaConsumerClient kafkaConsumer = clientFactory.getClient(topicAH, keyAH, messageAH,
 				partitions, consumerPollTimeout, finalProperties);
-		kafkaConsumer.init(streamingOutput, topics);
+		kafkaConsumer.setPartitionAssignment(assignmentIndex, assignmentCount);
+		kafkaConsumer.setReassembler(reassembler);
+		kafkaConsumer.setOffsetRange(offsetRange);
+		kafkaConsumer.setAvroConverter(avroConverter);
+		kafkaConsumer.setFilter(filter);
+		kafkaConsumer.init(outputRouter, topics);
 		return kafkaConsumer;
 	}
 
@@ -247,13 +598,174 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 	@Override
 	public void allPortsReady() throws Exception {	
 		
-		processThread = getOperatorContext()
+		if (bootstrapSnapshot) {
+			// Reading the snapshot can take long, the consumers start once it is submitted
+			Thread snapshotThread = getOperatorContext().getThreadFactory().newThread(new Runnable() {
+
+				@Override
+				public void run() {
+					try {
+						submitSnapshot();
+						startConsumers();
+					} catch (Exception e) {
+						// Reading on without the snapshot would lose its messages
+						trace.log(LogLevel.ERROR, "Could not submit snapshot: " + e.getMessage()); //$NON-NLS-1$
+						e.printStackTrace();
+						shutdownIdleConsumers();
+						// An uncaught exception of an operator thread fails the PE
+						throw new RuntimeException(e);
+					}
+				}
+
+			});
+			snapshotThread.setDaemon(false);
+			snapshotThread.start();
+		} else {
+			startConsumers();
+		}
+		
+		getOperatorContext().getScheduledExecutorService().scheduleAtFixedRate(new Runnable() {
+
+			@Override
+			public void run() {
+				updateKafkaMetrics();
+			}
+			
+		}, KAFKA_METRICS_PERIOD, KAFKA_METRICS_PERIOD, TimeUnit.SECONDS);
+	}
+	
+	/*
+	 * Close the clients when the consumer threads could not be started, for
+	 * shutdown() not to wait on them.
+	 */
+	private void shutdownIdleConsumers() {
+		for (KafkaConsumerClient<?,?> streamsKafkaConsumer : streamsKafkaConsumers) {
+			try {
+				streamsKafkaConsumer.shutdown();
+			} catch (Exception e) {
+				trace.log(TraceLevel.WARN, "Could not close consumer: " + e.getMessage()); //$NON-NLS-1$
+			} finally {
+				consumersShutdown.countDown();
+			}
+		}
+	}
+	
+	private void startConsumers() throws InterruptedException {
+		for (int i = 0; i < consumerThreads; i++) {
+			startPollingIfBuffered(streamsKafkaConsumers.get(i));
+			processThreads.add(newProcessThread(i));
+		}
+		
+		/*
+		 * Set the threads not to be daemons to ensure that the SPL runtime will
+		 * wait for the threads to complete before determining the operator is
+		 * complete.
+		 */
+		for (Thread processThread : processThreads) {
+			processThread.setDaemon(false);
+			processThread.start();
+		}
+	}
+	
+	/*
+	 * Submit the latest message of each key, followed by a window punctuation,
+	 * and move the consumers to the end of the snapshot. Partitions the group
+	 * has not assigned yet start at the end of the snapshot once assigned. In a
+	 * consistent region this happens under a permit, so the first checkpoint
+	 * covers the snapshot.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void submitSnapshot() throws Exception {
+		snapshotReader = new SnapshotReader(finalProperties);
+		try {
+			if (shutdown.get())
+				return;
+			snapshotReader.read(topics, consumerPollTimeout);
+			
+			if (crContext != null)
+				crContext.acquirePermit();
+			try {
+				AvroTupleConverter avroConverter = newAvroConverter();
+				for (Map.Entry<TopicPartition, Map<ByteBuffer, byte[]>> partitionMessages : snapshotReader.getSnapshot().entrySet()) {
+					TopicPartition partition = partitionMessages.getKey();
+					for (Map.Entry<ByteBuffer, byte[]> message : partitionMessages.getValue().entrySet()) {
+						if (filter != null && !filter.accept(message.getKey().array(), message.getValue()))
+							continue;
+						StreamingOutput<OutputTuple> streamingOutput = outputRouter.getOutput(partition.partition(), message.getKey().array());
+						OutputTuple otup = streamingOutput.newTuple();
+						if (topicAH.isAvailable())
+							topicAH.setValue(otup, partition.topic());
+						if (keyAH.isAvailable())
+							keyAH.setValue(otup, message.getKey().array());
+						if (avroConverter == null) {
+							messageAH.setValue(otup, message.getValue());
+						} else {
+							try {
+								avroConverter.decode(message.getValue(), otup);
+							} catch (Exception e) {
+								trace.log(TraceLevel.WARN, "Skipping snapshot message of partition " + partition //$NON-NLS-1$
+										+ ", it could not be decoded: " + e.getMessage()); //$NON-NLS-1$
+								continue;
+							}
+						}
+						streamingOutput.submit(otup);
+					}
+				}
+				outputRouter.punctuate(Punctuation.WINDOW_MARKER);
+				snapshotOffsets.putAll(snapshotReader.getEndOffsets());
+				for (KafkaConsumerClient<?,?> streamsKafkaConsumer : streamsKafkaConsumers)
+					streamsKafkaConsumer.seekToSnapshot(snapshotOffsets);
+			} finally {
+				if (crContext != null)
+					crContext.releasePermit();
+			}
+		} catch (WakeupException e) {
+			if (!shutdown.get())
+				throw e;
+		} finally {
+			snapshotReader.close();
+			snapshotReader = null;
+		}
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private void updateKafkaMetrics() {
+		double lagMax = 0, fetches = 0, bytesConsumed = 0, latency = 0;
+		int latencyCount = 0;
+		try {
+			for (KafkaConsumerClient consumer : streamsKafkaConsumers) {
+				Map<String, Double> values = consumer.getFetchMetrics();
+				if (values.containsKey("records-lag-max")) //$NON-NLS-1$
+					lagMax = Math.max(lagMax, values.get("records-lag-max")); //$NON-NLS-1$
+				if (values.containsKey("fetch-rate")) //$NON-NLS-1$
+					fetches += values.get("fetch-rate"); //$NON-NLS-1$
+				if (values.containsKey("bytes-consumed-rate")) //$NON-NLS-1$
+					bytesConsumed += values.get("bytes-consumed-rate"); //$NON-NLS-1$
+				if (values.containsKey("fetch-latency-avg")) { //$NON-NLS-1$
+					latency += values.get("fetch-latency-avg"); //$NON-NLS-1$
+					latencyCount++;
+				}
+			}
+		} catch (Exception e) {
+			// Metrics are informational, try again next period
+			trace.log(TraceLevel.DEBUG, "Unable to read Kafka metrics: " + e); //$NON-NLS-1$
+			return;
+		}
+		recordsLagMax.setValue(Math.round(lagMax));
+		fetchRate.setValue(Math.round(fetches));
+		bytesConsumedRate.setValue(Math.round(bytesConsumed));
+		if (latencyCount > 0)
+			fetchLatencyAvg.setValue(Math.round(latency / latencyCount));
+	}
+	
+	private Thread newProcessThread(final int clientIndex) {
+		return getOperatorContext()
 				.getThreadFactory().newThread(new Runnable() {
 
 			@Override
 			public void run() {
 				try {
-					produceTuples();
+					produceTuples(clientIndex);
 				} catch (FileNotFoundException e) {
 					trace.log(TraceLevel.ERROR, e.getMessage());
 					e.printStackTrace();
@@ -263,23 +775,77 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 				} catch (UnsupportedStreamsKafkaConfigurationException e) {
 					trace.log(TraceLevel.ERROR, e.getMessage());
 					e.printStackTrace();
+				} catch (InterruptedException e) {
+					trace.log(TraceLevel.ERROR, e.getMessage());
+					e.printStackTrace();
 				}
 			}
 
 		});
-		
-		/*
-		 * Set the thread not to be a daemon to ensure that the SPL runtime will
-		 * wait for the thread to complete before determining the operator is
-		 * complete.
-		 */
-		processThread.setDaemon(false);
-		processThread.start();
 	}
 	
-	@SuppressWarnings("unchecked")
-	public void produceTuples() throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException{	
+	/*
+	 * With a poll buffer, fetching happens on a separate thread
+	 * and produceTuples() only converts and submits.
+	 */
+	@SuppressWarnings("rawtypes")
+	private void startPollingIfBuffered(KafkaConsumerClient streamsKafkaConsumer) throws InterruptedException {
+		if (pollBufferSize > 0) {
+			// Checkpoints need the offsets the new client starts from
+			if (crContext != null)
+				streamsKafkaConsumer.getOffsetPositions();
+			streamsKafkaConsumer.setFlowControl(pauseThreshold, resumeThreshold);
+			streamsKafkaConsumer.startPolling(getOperatorContext().getThreadFactory(),
+					consumerPollTimeout, pollBufferSize);
+		}
+	}
+	
+	private boolean isCheckpointDue(ConsumerRecords<?,?> records) {
+		long bytes = 0;
+		if (triggerBytes > 0) {
+			for (ConsumerRecord<?,?> record : records)
+				bytes += Math.max(record.serializedKeySize(), 0) + Math.max(record.serializedValueSize(), 0);
+		}
+		synchronized (triggerLock) {
+			long now = System.nanoTime();
+			if (triggerMessages == 0)
+				firstTriggerMessageTime = now;
+			triggerMessages += records.count();
+			triggerMessageBytes += bytes;
+			if (triggerMessages == 0)
+				return false;
+			boolean due;
+			if (triggerCount < 0 && triggerBytes < 0 && triggerPeriod < 0)
+				due = true;
+			else
+				due = (triggerCount >= 0 && triggerMessages >= triggerCount)
+						|| (triggerBytes > 0 && triggerMessageBytes >= triggerBytes)
+						|| (triggerPeriod > 0 && now - firstTriggerMessageTime >= triggerPeriod * 1e9);
+			if (due) {
+				triggerMessages = 0;
+				triggerMessageBytes = 0;
+			}
+			return due;
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public void produceTuples(int clientIndex) throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException, InterruptedException{	
+		boolean consumerIsShutdown = false;
 		while (!shutdown.get()) {
+			// The client is replaced when properties change
+			KafkaConsumerClient streamsKafkaConsumer = streamsKafkaConsumers.get(clientIndex);
+			if (streamsKafkaConsumer.isFinished()) {
+				if (crContext == null)
+					break;
+				// A reset of the consistent region may seek the client back before its end offsets
+				try {
+					Thread.sleep(consumerPollTimeout);
+				} catch (InterruptedException e) {
+					break;
+				}
+				continue;
+			}
 			try {
 				if (crContext != null){
 					if(trace.isLoggable(TraceLevel.TRACE))
@@ -293,15 +859,11 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 					streamsKafkaConsumer.checkConnectionCount();
 				} else {
 					streamsKafkaConsumer.processAndSubmit(records);
-					if (crContext != null
-							&& crContext.isTriggerOperator()) {
-						triggerIteration += records.count();
-						if (triggerIteration >= triggerCount) {
-							trace.log(TraceLevel.INFO, "Making consistent..." ); //$NON-NLS-1$
-							crContext.makeConsistent();
-							triggerIteration = 0;
-						}
-					}
+				}
+				// Checked after empty polls too, for triggerPeriod
+				if (crContext != null && crContext.isTriggerOperator() && isCheckpointDue(records)) {
+					trace.log(TraceLevel.INFO, "Making consistent..." ); //$NON-NLS-1$
+					crContext.makeConsistent();
 				}
 			} catch (WakeupException e){
 	            // Close if we are shutting down, else error
@@ -309,23 +871,21 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 					trace.log(TraceLevel.ALL, "Shutting down consumer."); //$NON-NLS-1$
 					if (streamsKafkaConsumer != null) {
 						streamsKafkaConsumer.shutdown();
-						consumerIsShutdown.set(true);
-						synchronized(consumerIsShutdown){
-							consumerIsShutdown.notifyAll();
-						}
+						consumerIsShutdown = true;
+						consumersShutdown.countDown();
 					}
 				} else {
 					// Else let's see if we have new properties to reset the consumer
 					trace.log(TraceLevel.ERROR, "WakeupException: " + e.getMessage()); //$NON-NLS-1$
 					e.printStackTrace();
-					resetConsumerIfPropertiesHaveChanges();
+					resetConsumerIfPropertiesHaveChanges(clientIndex);
 				}
 			} catch (NoKafkaBrokerConnectionsException 
 					| KafkaException e){
 				// Let's see if we have new properties to reset the consumer
 				trace.log(TraceLevel.ERROR, e.getMessage());
 				e.printStackTrace();
-				resetConsumerIfPropertiesHaveChanges();
+				resetConsumerIfPropertiesHaveChanges(clientIndex);
 	        } catch (InterruptedException e) {
 	        	// Interrupted while acquiring permit
 	        	trace.log(LogLevel.ERROR, Messages.getString("ERROR_WHILE_ACQUIRING_PERMIT", e.getMessage())); //$NON-NLS-1$
@@ -342,36 +902,46 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 			}
 		}
 		
-		if (!consumerIsShutdown.get()){
-			streamsKafkaConsumer.shutdown();
-			consumerIsShutdown.set(true);
-			synchronized(consumerIsShutdown){
-				consumerIsShutdown.notifyAll();
+		if (!consumerIsShutdown){
+			streamsKafkaConsumers.get(clientIndex).shutdown();
+			consumersShutdown.countDown();
+		}
+		
+		// The last consumer to reach its end offsets ends the stream, in a
+		// consistent region the consumers wait for a reset instead
+		if (!shutdown.get() && crContext == null && finishedConsumers.incrementAndGet() == consumerThreads) {
+			trace.log(TraceLevel.INFO, "All partitions reached their end offsets, submitting final punctuation."); //$NON-NLS-1$
+			try {
+				outputRouter.punctuate(Punctuation.FINAL_MARKER);
+			} catch (Exception e) {
+				trace.log(TraceLevel.ERROR, "Could not submit final punctuation: " + e.getMessage()); //$NON-NLS-1$
 			}
 		}
 	}
 
-	private void resetConsumerIfPropertiesHaveChanges() throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException {
+	private void resetConsumerIfPropertiesHaveChanges(int clientIndex) throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException, InterruptedException {
 		OperatorContext context = this.getOperatorContext();
 		if (newPropertiesExist(context)){
 			trace.log(TraceLevel.INFO,
 					"Properties have changed. Initializing consumer with new properties."); //$NON-NLS-1$
-			resetConsumerClient(context);
+			resetConsumerClient(context, clientIndex);
 		} else {
 			trace.log(TraceLevel.INFO, "Properties have not changed, so we are keeping the same consumer client!"); //$NON-NLS-1$
 		}
 		
 	}
 
-	private void resetConsumerClient(OperatorContext context) throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException {
+	@SuppressWarnings("rawtypes")
+	private void resetConsumerClient(OperatorContext context, int clientIndex) throws FileNotFoundException, IOException, UnsupportedStreamsKafkaConfigurationException, InterruptedException {
 		// Not catching exceptions because we want to fail
 		// if we can't initialize a new consumer
 		getKafkaProperties(context);		
-        streamsKafkaConsumer.shutdown();
+        streamsKafkaConsumers.get(clientIndex).shutdown();
 		trace.log(TraceLevel.INFO,
 				"Shut down consumer. Will attempt to create a new one."); //$NON-NLS-1$
-		streamsKafkaConsumer = getNewConsumerClient(topicAH, keyAH, messageAH,
-				partitions, consumerPollTimeout, finalProperties, getOutput(0), topics);
+		KafkaConsumerClient streamsKafkaConsumer = getNewConsumerClient(clientIndex);
+		streamsKafkaConsumers.set(clientIndex, streamsKafkaConsumer);
+		startPollingIfBuffered(streamsKafkaConsumer);
 	}
 
 	@Parameter(name = "consumerPollTimeout", optional = true, description = "The time, in milliseconds, spent waiting in poll if data is not available. If 0, returns immediately with any records that are available now. Must not be negative. Default is 100.")
@@ -379,11 +949,181 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 		this.consumerPollTimeout = value;
 	}
 	
+	@Parameter(name = "pollBufferSize", optional = true, description = "Number of polled batches of messages that can be buffered between fetching from Kafka and submitting tuples. "
+			+ "If greater than 0, the operator polls Kafka on a separate thread so that fetching overlaps with tuple conversion and submission. "
+			+ "Each batch holds up to max.poll.records messages. Default is 0, which polls and submits on the same thread.")
+	public void setPollBufferSize(int value) {
+		this.pollBufferSize = value;
+	}
+	
+	@Parameter(name = "pauseThreshold", optional = true, description = "Number of buffered batches of messages at which the consumer pauses fetching "
+			+ "from its partitions, so that a slow downstream does not block polling. The consumer keeps polling while paused and so remains "
+			+ "a live member of its group instead of timing out and triggering a rebalance. Must not be greater than pollBufferSize. "
+			+ "Default is pollBufferSize, which pauses fetching once the buffer is full.")
+	public void setPauseThreshold(int value) {
+		this.pauseThreshold = value;
+	}
+	
+	@Parameter(name = "resumeThreshold", optional = true, description = "Number of buffered batches of messages at which a paused consumer "
+			+ "resumes fetching. Must be less than pauseThreshold. Default is half of pauseThreshold.")
+	public void setResumeThreshold(int value) {
+		this.resumeThreshold = value;
+	}
+	
+	@Parameter(name = "consumerThreads", optional = true, description = "Number of Kafka consumers, each running on its own thread and submitting to the output port. "
+			+ "The consumers share the same group.id, so Kafka balances the partitions of the subscribed topics among them. "
+			+ "If the partition parameter is specified, the partitions are divided among the consumers and the number of consumers "
+			+ "is limited to the number of partitions. Ordering of messages is still guaranteed per Kafka topic partition. Default is 1.")
+	public void setConsumerThreads(int value) {
+		this.consumerThreads = value;
+	}
+	
+	@Parameter(name = "assignPartitionsByChannel", optional = true, description = "If true, the operator assigns itself a share of the partitions of the topics "
+			+ "instead of subscribing to them, so no group rebalancing takes place. In a parallel region, the partitions are divided among the channels "
+			+ "based on the channel index and the number of channels of the operator; partition p of the t-th topic is read by channel (p + t) modulo the number of channels. "
+			+ "Outside of a parallel region, all partitions are read. "
+			+ "Channels without a partition do not receive messages. This parameter cannot be used with the partition parameter. Default is false.")
+	public void setAssignPartitionsByChannel(boolean value) {
+		this.assignPartitionsByChannel = value;
+	}
+	
+	@Parameter(name = "bootstrapSnapshot", optional = true, description = "If true, the operator starts by reading the partitions of the topics "
+			+ "from their beginning up to their current end, typically for compacted topics holding reference data. Only the latest message "
+			+ "of each key is kept, a message without a value deleting its key, and these messages are submitted once all partitions are read, "
+			+ "followed by a window punctuation. The consumers then read on from the end of the snapshot. Messages without a key are not part "
+			+ "of the snapshot. The snapshot is held in memory while it is read and is not submitted again after a reset of a consistent region. "
+			+ "Default is false.")
+	public void setBootstrapSnapshot(boolean value) {
+		this.bootstrapSnapshot = value;
+	}
+	
+	@Parameter(name = "startOffset", cardinality = -1, optional = true, description = "Offset to start reading the partitions at. Either one offset "
+			+ "for all the partitions, or one offset for each value of the partition parameter, in the same order. -2 starts at the beginning "
+			+ "of a partition and -1 at its end. The operator assigns itself the partitions of the topics rather than joining the consumer group. "
+			+ "By default, partitions start at the offsets committed for the group.")
+	public void setStartOffset(long[] values) {
+		this.startOffsets = values;
+	}
+	
+	@Parameter(name = "endOffset", cardinality = -1, optional = true, description = "Offset to stop reading the partitions at, exclusive. Either one "
+			+ "offset for all the partitions, or one offset for each value of the partition parameter, in the same order. -1 stops at the end "
+			+ "of a partition when the operator starts. Once all partitions have reached their end offset, the operator submits a final "
+			+ "punctuation and stops. In a consistent region the operator instead stays idle, so that a reset of the region can read "
+			+ "the partitions again from the offsets of the checkpoint, and no final punctuation is submitted. The operator assigns itself the partitions of the topics rather than joining the consumer group, and "
+			+ "reads them with a max.partition.fetch.bytes of 10485760 unless specified. By default, partitions are read on without end.")
+	public void setEndOffset(long[] values) {
+		this.endOffsets = values;
+	}
+	
+	@Parameter(name = "avroSchemaDirectory", optional = true, description = "Directory of the Avro schemas messages are written with, "
+			+ "for messages read with the schema of the avroSchemaFile parameter. Each message then starts with a zero byte and the id of its "
+			+ "schema as a 4 byte big-endian integer, and the schema is read from the file <id>.avsc of the directory. The fields of the message "
+			+ "are resolved to the schema of the avroSchemaFile parameter, following the Avro schema resolution rules. "
+			+ "If a relative path is specified, the path is relative to the application directory. "
+			+ "By default, messages have no prefix and are written with the schema of the avroSchemaFile parameter.")
+	public void setAvroSchemaDirectory(String value) {
+		this.avroSchemaDirectory = value;
+	}
+	
+	@Parameter(name = "maxMessageRate", optional = true, description = "Maximum number of messages read per second, with bursts of up to "
+			+ "one second of messages. Fetching pauses while the rate is exceeded, the consumers keep polling to remain in their group. "
+			+ "Messages already fetched, or buffered with the pollBufferSize parameter, are still submitted. Useful to catch up at a pace "
+			+ "downstream systems can sustain. The rate can be changed through the optional control port. Cannot be used with maxByteRate.")
+	public void setMaxMessageRate(double value) {
+		this.maxMessageRate = value;
+	}
+	
+	@Parameter(name = "maxByteRate", optional = true, description = "Maximum number of bytes of the keys and messages, as read from Kafka, "
+			+ "read per second, with bursts of up to one second of bytes. Behaves like maxMessageRate otherwise. The rate can be changed "
+			+ "through the optional control port. Cannot be used with maxMessageRate.")
+	public void setMaxByteRate(double value) {
+		this.maxByteRate = value;
+	}
+	
+	@Parameter(name = "commitOnRegionCheckpoint", optional = true, description = "If true, the offsets of each completed checkpoint of the "
+			+ "consistent region are committed to the consumer group, asynchronously. A job submitted again then starts from the last region "
+			+ "checkpoint rather than from offsets committed earlier, and tools monitoring the lag of the group see the progress of the region. "
+			+ "A failed commit is logged and counted by the nFailedOffsetCommits metric, the next region checkpoint commits newer offsets. "
+			+ "Use it with `enable.auto.commit=false`. Ignored outside a consistent region. Default is false.")
+	public void setCommitOnRegionCheckpoint(boolean value) {
+		this.commitOnRegionCheckpoint = value;
+	}
+	
+	@Parameter(name = "routeByKey", optional = true, description = "If true, messages are routed to the output ports by the hash of "
+			+ "their key, so that all the messages of a key go to the same port in order. Messages without a key are routed by partition. "
+			+ "If false, the messages of partition p go to port p modulo the number of output ports, in order. Default is false.")
+	public void setRouteByKey(boolean value) {
+		this.routeByKey = value;
+	}
+	
+	@Parameter(name = "filterKey", cardinality = -1, optional = true, description = "Keys of the messages to submit. Messages with "
+			+ "other keys, or without a key, are discarded before a tuple is created for them. Their offsets are committed like those of "
+			+ "submitted messages. The filter parameters can be combined, a message is submitted if it passes all of them.")
+	public void setFilterKey(List<String> values) {
+		this.filterKeys = values;
+	}
+	
+	@Parameter(name = "filterKeyPrefix", optional = true, description = "Prefix of the keys of the messages to submit. Keys read as "
+			+ "byte arrays are compared with the UTF-8 encoding of the prefix, without decoding them. Messages without a key are discarded.")
+	public void setFilterKeyPrefix(String value) {
+		this.filterKeyPrefix = value;
+	}
+	
+	@Parameter(name = "filterMessagePrefix", optional = true, description = "Prefix of the messages to submit. Messages read as "
+			+ "byte arrays are compared with the UTF-8 encoding of the prefix, without decoding them. Messages without a value are discarded.")
+	public void setFilterMessagePrefix(String value) {
+		this.filterMessagePrefix = value;
+	}
+	
+	@Parameter(name = "filterKeyPattern", optional = true, description = "Regular expression, in the syntax of java.util.regex.Pattern, "
+			+ "that the whole key of the messages to submit must match. Keys read as byte arrays are decoded as UTF-8 for the match. "
+			+ "Messages without a key are discarded.")
+	public void setFilterKeyPattern(String value) {
+		this.filterKeyPattern = value;
+	}
+	
+	@Parameter(name = "reassembleChunks", optional = true, description = "If true, messages split into chunks by a KafkaProducer with the maxChunkSize "
+			+ "parameter are reassembled and submitted as one tuple once all their chunks are received. Messages sent without chunking are submitted "
+			+ "unchanged. Keys and messages are read with the ByteArrayDeserializer, which must be used if deserializers are specified. "
+			+ "The offsets of a partition are not checkpointed past the first chunk of a message that is not complete yet. Default is false.")
+	public void setReassembleChunks(boolean value) {
+		this.reassembleChunks = value;
+	}
+	
+	@Parameter(name = "chunkTimeout", optional = true, description = "Time, in milliseconds, to wait for the remaining chunks of a message after "
+			+ "its first chunk was received. The chunks of a message that is not complete by then are discarded. Default is 60000.")
+	public void setChunkTimeout(int value) {
+		this.chunkTimeout = value;
+	}
+	
+	@Parameter(name = "reassemblyBufferSize", optional = true, description = "Maximum number of bytes of the chunks held for the messages that "
+			+ "are not complete yet, for all the consumers of the operator. When exceeded, the chunks of the oldest messages are discarded. "
+			+ "Messages larger than this size are discarded. Default is 268435456 (256 MB).")
+	public void setReassemblyBufferSize(long value) {
+		this.reassemblyBufferSize = value;
+	}
+	
     @Parameter(name="triggerCount", optional=true, 
 			description="Approximate number of messages between checkpointing for consistent region. This is only relevant to operator driven checkpointing. Checkpointing is done after a buffer of messages is submitted, so actual triggerCount at checkpoint time may be slightly above specified triggerCount.")
 	public void setTriggerCount(int value) {
 	   	this.triggerCount = value;
 	}
+	
+	@Parameter(name = "triggerPeriod", optional = true, description = "Maximum number of seconds between the first message submitted after a "
+			+ "checkpoint and the next checkpoint, for operator driven checkpointing of a consistent region. Bounds the time to recover after a "
+			+ "failure when messages are few, while no checkpoint is made when no message arrives. Can be combined with triggerCount and "
+			+ "triggerBytes, a checkpoint is made when any of them is reached.")
+	public void setTriggerPeriod(double value) {
+		this.triggerPeriod = value;
+	}
+	
+	@Parameter(name = "triggerBytes", optional = true, description = "Approximate number of bytes of the keys and messages, as read from "
+			+ "Kafka, between checkpoints for operator driven checkpointing of a consistent region. Keeps the checkpoint frequency stable "
+			+ "whatever the size of the messages. Can be combined with triggerCount and triggerPeriod, a checkpoint is made when any of "
+			+ "them is reached.")
+	public void setTriggerBytes(long value) {
+		this.triggerBytes = value;
+	}
 
 	@Parameter(name = "topic", cardinality = -1, optional = false, description = "Topic to be subscribed to. 1 or more can be provided using comma separation. Ex: \\\"mytopic1\\\",\\\"mytopic2\\\"")
 	public void setTopic(List<String> values) {
@@ -408,30 +1148,35 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 																									// and
 																									// Sink
 			"The threadsPerTopic parameter has been removed since the upgrade to Kafka 0.9. This is because the new KafkaConsumer is single-threaded. " //$NON-NLS-1$
+			+ "Use the consumerThreads parameter to run several KafkaConsumers within the operator instead. " //$NON-NLS-1$
 			+ "Due to a bug in Kafka (eventually getting resolved by KAFKA-1894), when authentication failure occurs or " //$NON-NLS-1$
 			+ "connection to Kafka brokers is lost, we will not be able to pick up new properties from the PropertyProvider. " //$NON-NLS-1$
 			+ "The workaround is to manually restart the KafkaConsumer PE after properties have been updated. New properties will " //$NON-NLS-1$
 			+ "then be picked up. " + "\\n\\n**Behavior in a Consistent Region**" //$NON-NLS-1$ //$NON-NLS-2$
 			+ "\\nThis operator can be used inside a consistent region. Operator driven and periodical checkpointing " //$NON-NLS-1$
-			+ "are supported. Partitions to be read from must be specified. " //$NON-NLS-1$
+			+ "are supported. Offsets are checkpointed per topic partition, so several topics and partitions assigned " //$NON-NLS-1$
+			+ "by the consumer group can be read from. When the group moves a partition to a consumer between checkpoints, " //$NON-NLS-1$
+			+ "that consumer starts the partition at the offset committed for the group, so `enable.auto.commit=false` is " //$NON-NLS-1$
+			+ "recommended to keep the group from committing offsets beyond the last checkpoint. " //$NON-NLS-1$
 			+ "Resetting to initial state is not supported because the intial offset cannot be saved and may not be present in the Kafka log. " //$NON-NLS-1$
 			+ "In the case of a reset to initial state after operator crash, messages will start being read from the time of reset."; //$NON-NLS-1$
 	
 	@Override
 	public void shutdown() throws Exception {
 		shutdown.set(true);
-		if (streamsKafkaConsumer != null){
-			streamsKafkaConsumer.wakeupConsumer();
+		SnapshotReader reader = snapshotReader;
+		if (reader != null)
+			reader.wakeup();
+		if (streamsKafkaConsumers != null){
+			for (KafkaConsumerClient<?,?> streamsKafkaConsumer : streamsKafkaConsumers)
+				streamsKafkaConsumer.wakeupConsumer();
 		}
 		
 		// Wait to make sure we have caught the wakeup exception
 		// and submitted shutdown task. 
 		
-		synchronized (consumerIsShutdown) {
-			if (!consumerIsShutdown.get()) {
-				consumerIsShutdown.wait(); // Wait until shutdown task submitted
-			}
-		}
+		if (consumersShutdown != null)
+			consumersShutdown.await(); // Wait until shutdown task submitted
 		
 		super.shutdown();
 	}
@@ -439,29 +1184,33 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 	@SuppressWarnings("unchecked")
 	@Override
 	public void checkpoint(Checkpoint checkpoint) throws Exception {
-		Map<Integer, Long> offsetMap = streamsKafkaConsumer.getOffsetPositions();
+		Map<TopicPartition, Long> offsetMap = getOffsetPositions();
 		trace.log(TraceLevel.INFO, "Checkpointing offsetMap."); //$NON-NLS-1$
 		checkpoint.getOutputStream().writeObject(offsetMap);
 		
 		// Save the offset map for this checkpoint.
 		if (ckptOffsetMaps != null) {
 		    ckptOffsetMaps.put(checkpoint.getSequenceId(), offsetMap);
-		    updateMetricsFromOffsetMap(ckptOffsetsMetrics, offsetMap);
+		    updateMetricsFromOffsetMap(ckptOffsetsMetrics, "topicLastCheckpointOffset:%s[%d]", //$NON-NLS-1$
+		    		"Last checkpoint offsets for consistent region.", offsetMap);
 		}
 	}
 
 	@Override
 	public void drain() throws Exception {
 		trace.log(TraceLevel.INFO,"Draining...."); //$NON-NLS-1$
+		drainStartTime = System.nanoTime();
 	}
 
 	@SuppressWarnings("unchecked")
 	@Override
 	public void reset(Checkpoint checkpoint) throws Exception {
-		Map<Integer, Long> offsetMap = (Map<Integer, Long>) checkpoint.getInputStream().readObject();
+		Map<TopicPartition, Long> offsetMap = (Map<TopicPartition, Long>) checkpoint.getInputStream().readObject();
 		trace.log(TraceLevel.INFO, "Resetting..."); //$NON-NLS-1$
-		streamsKafkaConsumer.seekToPositions(offsetMap);		
-		updateMetricsFromOffsetMap(startingOffsetsMetrics, offsetMap);
+		for (KafkaConsumerClient<?,?> streamsKafkaConsumer : streamsKafkaConsumers)
+			streamsKafkaConsumer.seekToPositions(offsetMap);		
+		updateMetricsFromOffsetMap(startingOffsetsMetrics, "topicStartingOffset:%s[%d]", //$NON-NLS-1$
+				"Starting offsets for consistent region.", offsetMap);
 	}
 
 	@Override
@@ -487,12 +1236,22 @@ public class KafkaSource extends KafkaBaseOper implements StateHandler{
 	}
 	@Override
 	public void regionCheckpointed(long id) throws Exception {
+		long startTime = drainStartTime;
+		if (startTime != 0 && checkpointDurations != null) {
+			checkpointDurations.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime));
+			drainStartTime = 0;
+		}
 	    if (ckptOffsetMaps != null) {
 	        // This is the only time we use the saved offset
 	        // so remove it.
-	        final Map<Integer,Long> offsetMap = ckptOffsetMaps.remove(id);
+	        final Map<TopicPartition,Long> offsetMap = ckptOffsetMaps.remove(id);
 	        if (offsetMap != null) {
-	            updateMetricsFromOffsetMap(regionCkptOffsetsMetrics, offsetMap);
+	            updateMetricsFromOffsetMap(regionCkptOffsetsMetrics, "topicRegionCheckpointOffset:%s[%d]", //$NON-NLS-1$
+	            		"Region checkpoint offsets for consistent region.", offsetMap);
+	            if (commitOnRegionCheckpoint) {
+	            	for (KafkaConsumerClient<?,?> streamsKafkaConsumer : streamsKafkaConsumers)
+	            		streamsKafkaConsumer.commitOffsets(offsetMap);
+	            }
 	        }
 	    }
 	}
@@ -0,0 +1,68 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Splits messages into chunks of at most maxChunkSize bytes, each sent as a
+ * Kafka record made of a header followed by the chunk. Every message gets
+ * the header, so that ChunkReassembler can tell it from messages sent
+ * without chunking. The header holds, in big-endian order:
+ *  - MAGIC (int)
+ *  - flags (byte), FLAG_NO_KEY if the message has no key
+ *  - message id (long), unique to the chunks of a message
+ *  - chunk index (int) and chunk count (int)
+ *  - message length (int)
+ * All chunks of a message have the same record key, so that they go to the
+ * same partition in order. A message without a key that needs several
+ * chunks is keyed with its message id.
+ */
+class MessageChunker {
+	static final int MAGIC = 0x53584348;
+	static final byte FLAG_NO_KEY = 1;
+	static final int HEADER_SIZE = 25;
+
+	static class Chunks {
+		final byte[] key;
+		final List<byte[]> values;
+
+		Chunks(byte[] key, List<byte[]> values) {
+			this.key = key;
+			this.values = values;
+		}
+	}
+
+	private final int maxChunkSize;
+	// Random start, so that producers of different processes use distinct ids
+	private final AtomicLong nextMessageId = new AtomicLong(new Random().nextLong());
+
+	MessageChunker(int maxChunkSize) {
+		this.maxChunkSize = maxChunkSize;
+	}
+
+	Chunks split(byte[] key, byte[] message) {
+		long messageId = nextMessageId.getAndIncrement();
+		int chunkCount = Math.max((message.length + maxChunkSize - 1) / maxChunkSize, 1);
+		byte flags = key == null ? FLAG_NO_KEY : 0;
+		List<byte[]> values = new ArrayList<byte[]>(chunkCount);
+		for (int index = 0; index < chunkCount; index++) {
+			int offset = index * maxChunkSize;
+			int length = Math.min(maxChunkSize, message.length - offset);
+			ByteBuffer value = ByteBuffer.allocate(HEADER_SIZE + length);
+			value.putInt(MAGIC).put(flags).putLong(messageId)
+				.putInt(index).putInt(chunkCount).putInt(message.length)
+				.put(message, offset, length);
+			values.add(value.array());
+		}
+		if (key == null && chunkCount > 1)
+			key = ByteBuffer.allocate(8).putLong(messageId).array();
+		return new Chunks(key, values);
+	}
+}
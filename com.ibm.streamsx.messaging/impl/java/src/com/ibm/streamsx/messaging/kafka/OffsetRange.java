@@ -0,0 +1,54 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.util.List;
+
+/*
+ * Offsets KafkaSource starts and stops reading the partitions at, from the
+ * startOffset and endOffset parameters. Each holds either one offset for
+ * all the partitions, or one offset for each value of the partition
+ * parameter, in the same order.
+ */
+class OffsetRange {
+	/** Start at the first offset of the partition. */
+	static final long BEGINNING = -2;
+	/** Start, or end, at the end of the partition when the consumer starts. */
+	static final long END = -1;
+
+	private final List<Integer> partitions;
+	private final long[] startOffsets;
+	private final long[] endOffsets;
+
+	/**
+	 * @param startOffsets Start offsets, or null to start at the committed offsets.
+	 * @param endOffsets Offsets following the last offsets to read, or null to read on.
+	 */
+	OffsetRange(List<Integer> partitions, long[] startOffsets, long[] endOffsets) {
+		this.partitions = partitions;
+		this.startOffsets = startOffsets;
+		this.endOffsets = endOffsets;
+	}
+
+	boolean hasStartOffsets() {
+		return startOffsets != null;
+	}
+
+	boolean isBounded() {
+		return endOffsets != null;
+	}
+
+	long getStartOffset(int partition) {
+		return getOffset(startOffsets, partition);
+	}
+
+	long getEndOffset(int partition) {
+		return getOffset(endOffsets, partition);
+	}
+
+	private long getOffset(long[] offsets, int partition) {
+		return offsets.length == 1 ? offsets[0] : offsets[partitions.indexOf(partition)];
+	}
+}
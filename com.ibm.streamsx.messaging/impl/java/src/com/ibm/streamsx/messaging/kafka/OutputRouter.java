@@ -0,0 +1,47 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.util.Arrays;
+import java.util.List;
+
+import com.ibm.streams.operator.OutputTuple;
+import com.ibm.streams.operator.StreamingData.Punctuation;
+import com.ibm.streams.operator.StreamingOutput;
+
+/*
+ * Routes the messages of KafkaSource to its output ports, which have the
+ * same schema. A message goes to port partition % N, or to port
+ * hash(key) % N when routing by key, N being the number of ports. Messages
+ * without a key are routed by partition. Either way all the messages of a
+ * partition, or of a key, go to the same port in order.
+ */
+class OutputRouter {
+	private final List<StreamingOutput<OutputTuple>> outputs;
+	private final boolean routeByKey;
+
+	OutputRouter(List<StreamingOutput<OutputTuple>> outputs, boolean routeByKey) {
+		this.outputs = outputs;
+		this.routeByKey = routeByKey;
+	}
+
+	/**
+	 * @param key String or byte array key, or null.
+	 */
+	StreamingOutput<OutputTuple> getOutput(int partition, Object key) {
+		int portCount = outputs.size();
+		if (portCount == 1)
+			return outputs.get(0);
+		int hash = partition;
+		if (routeByKey && key != null)
+			hash = key instanceof byte[] ? Arrays.hashCode((byte[]) key) : key.hashCode();
+		return outputs.get((hash & Integer.MAX_VALUE) % portCount);
+	}
+
+	void punctuate(Punctuation punctuation) throws Exception {
+		for (StreamingOutput<OutputTuple> output : outputs)
+			output.punctuate(punctuation);
+	}
+}
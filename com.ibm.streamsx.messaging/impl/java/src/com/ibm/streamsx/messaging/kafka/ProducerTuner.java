@@ -0,0 +1,92 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+/*
+ * Adjusts linger.ms and batch.size of a producer from its metrics, within
+ * bounds and keeping the time records wait in the accumulator below a
+ * target latency:
+ *  - records waiting longer than the target: halve linger.ms;
+ *  - batches nearly full: double batch.size;
+ *  - batches mostly empty with latency to spare: double linger.ms, so
+ *    that batches fill up before they are sent;
+ *  - batches nearly empty while sent without lingering: halve batch.size.
+ * A change takes effect when the producer is recreated with the settings
+ * applied to its properties. Settings are only changed after the metrics
+ * reflect the current settings for TUNING_PERIODS updates.
+ */
+class ProducerTuner {
+	private static final Logger trace = Logger.getLogger(ProducerTuner.class.getCanonicalName());
+
+	static final int TUNING_PERIODS = 6;
+	private static final int MIN_BATCH_SIZE = 16384;
+
+	private final long targetLatency;
+	private final long maxLingerMs;
+	private final long maxBatchSize;
+	private long lingerMs;
+	private long batchSize;
+	private int periods = 0;
+
+	ProducerTuner(Properties props, long targetLatency, long maxLingerMs, long maxBatchSize) {
+		this.targetLatency = targetLatency;
+		this.maxLingerMs = maxLingerMs;
+		this.maxBatchSize = Math.max(maxBatchSize, MIN_BATCH_SIZE);
+		lingerMs = Math.min(Long.parseLong(props.getProperty("linger.ms", "0")), maxLingerMs); //$NON-NLS-1$ //$NON-NLS-2$
+		batchSize = Math.min(Long.parseLong(props.getProperty("batch.size", "16384")), this.maxBatchSize); //$NON-NLS-1$ //$NON-NLS-2$
+	}
+
+	/**
+	 * Set the tuned linger.ms and batch.size in the producer properties.
+	 */
+	void apply(Properties props) {
+		props.setProperty("linger.ms", String.valueOf(lingerMs)); //$NON-NLS-1$
+		props.setProperty("batch.size", String.valueOf(batchSize)); //$NON-NLS-1$
+	}
+
+	/**
+	 * @param metrics Values of the producer metrics, by Kafka metric name.
+	 * @return true if the settings changed and the producer must be recreated.
+	 */
+	synchronized boolean update(Map<String, Double> metrics) {
+		Double sendRate = metrics.get("record-send-rate"); //$NON-NLS-1$
+		Double batchSizeAvg = metrics.get("batch-size-avg"); //$NON-NLS-1$
+		Double queueTime = metrics.get("record-queue-time-avg"); //$NON-NLS-1$
+		if (sendRate == null || sendRate == 0 || batchSizeAvg == null || queueTime == null)
+			return false;
+		if (++periods < TUNING_PERIODS)
+			return false;
+
+		double fillRatio = batchSizeAvg / batchSize;
+		long newLingerMs = lingerMs;
+		long newBatchSize = batchSize;
+		if (queueTime > targetLatency) {
+			newLingerMs = lingerMs / 2;
+		} else if (fillRatio > 0.9) {
+			newBatchSize = Math.min(batchSize * 2, maxBatchSize);
+		} else if (fillRatio < 0.5 && queueTime < targetLatency / 2.0) {
+			newLingerMs = Math.min(Math.max(lingerMs * 2, 1), Math.min(maxLingerMs, targetLatency));
+		} else if (fillRatio < 0.25 && lingerMs >= Math.min(maxLingerMs, targetLatency)) {
+			newBatchSize = Math.max(batchSize / 2, MIN_BATCH_SIZE);
+		}
+		if (newLingerMs == lingerMs && newBatchSize == batchSize)
+			return false;
+
+		trace.log(TraceLevel.INFO, "Tuning producer from linger.ms=" + lingerMs + " batch.size=" + batchSize //$NON-NLS-1$ //$NON-NLS-2$
+				+ " to linger.ms=" + newLingerMs + " batch.size=" + newBatchSize //$NON-NLS-1$ //$NON-NLS-2$
+				+ " with record-send-rate=" + sendRate + " batch-size-avg=" + batchSizeAvg //$NON-NLS-1$ //$NON-NLS-2$
+				+ " record-queue-time-avg=" + queueTime); //$NON-NLS-1$
+		lingerMs = newLingerMs;
+		batchSize = newBatchSize;
+		periods = 0;
+		return true;
+	}
+}
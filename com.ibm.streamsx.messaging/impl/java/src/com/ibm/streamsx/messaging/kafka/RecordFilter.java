@@ -0,0 +1,106 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import com.ibm.streams.operator.metrics.Metric;
+
+/*
+ * Selects the records KafkaSource submits, before a tuple is created for
+ * them. A record is submitted if it passes all the conditions that are set.
+ * Byte array keys and messages are compared as bytes with the UTF-8 encoding
+ * of the conditions, so that discarded records are not decoded; only the
+ * key pattern decodes keys. Records without a key fail the key conditions.
+ * Stateless, shared by the consumer clients of an operator.
+ */
+class RecordFilter {
+	private final Set<String> keys = new HashSet<String>();
+	private final Set<ByteBuffer> keyBytes = new HashSet<ByteBuffer>();
+	private String keyPrefix;
+	private byte[] keyPrefixBytes;
+	private String messagePrefix;
+	private byte[] messagePrefixBytes;
+	private Pattern keyPattern;
+	private Metric nRecordsFiltered;
+
+	void setKeys(List<String> keys) {
+		for (String key : keys) {
+			this.keys.add(key);
+			keyBytes.add(ByteBuffer.wrap(key.getBytes(AttributeHelper.CS)));
+		}
+	}
+
+	void setKeyPrefix(String keyPrefix) {
+		this.keyPrefix = keyPrefix;
+		keyPrefixBytes = keyPrefix.getBytes(AttributeHelper.CS);
+	}
+
+	void setMessagePrefix(String messagePrefix) {
+		this.messagePrefix = messagePrefix;
+		messagePrefixBytes = messagePrefix.getBytes(AttributeHelper.CS);
+	}
+
+	void setKeyPattern(String keyPattern) {
+		this.keyPattern = Pattern.compile(keyPattern);
+	}
+
+	void setFilteredRecordsMetric(Metric nRecordsFiltered) {
+		this.nRecordsFiltered = nRecordsFiltered;
+	}
+
+	/**
+	 * @param key String or byte array key, or null.
+	 * @param message String or byte array message, or null.
+	 * @return true if the record is to be submitted.
+	 */
+	boolean accept(Object key, Object message) {
+		if (matches(key, message))
+			return true;
+		if (nRecordsFiltered != null)
+			nRecordsFiltered.increment();
+		return false;
+	}
+
+	private boolean matches(Object key, Object message) {
+		if (!keys.isEmpty()) {
+			if (key == null)
+				return false;
+			if (key instanceof byte[] ? !keyBytes.contains(ByteBuffer.wrap((byte[]) key)) : !keys.contains(key))
+				return false;
+		}
+		if (keyPrefix != null && !startsWith(key, keyPrefix, keyPrefixBytes))
+			return false;
+		if (messagePrefix != null && !startsWith(message, messagePrefix, messagePrefixBytes))
+			return false;
+		if (keyPattern != null) {
+			if (key == null)
+				return false;
+			String stringKey = key instanceof byte[] ? new String((byte[]) key, AttributeHelper.CS) : key.toString();
+			if (!keyPattern.matcher(stringKey).matches())
+				return false;
+		}
+		return true;
+	}
+
+	private static boolean startsWith(Object value, String prefix, byte[] prefixBytes) {
+		if (value == null)
+			return false;
+		if (!(value instanceof byte[]))
+			return value.toString().startsWith(prefix);
+		byte[] bytes = (byte[]) value;
+		if (bytes.length < prefixBytes.length)
+			return false;
+		for (int i = 0; i < prefixBytes.length; i++) {
+			if (bytes[i] != prefixBytes[i])
+				return false;
+		}
+		return true;
+	}
+}
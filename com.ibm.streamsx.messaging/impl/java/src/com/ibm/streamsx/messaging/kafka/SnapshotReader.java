@@ -0,0 +1,148 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.logging.Logger;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.KafkaConsumer;
+import org.apache.kafka.common.PartitionInfo;
+import org.apache.kafka.common.TopicPartition;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+/*
+ * Reads the partitions of compacted topics from their beginning up to their
+ * end offsets at the time of reading, keeping the latest message of each
+ * key. A message without a value deletes its key, like compaction does.
+ * Keys and messages are kept as bytes, as read, to keep the snapshot small.
+ * Uses its own consumer with assigned partitions, which does not join the
+ * group of the operator and does not commit offsets.
+ */
+class SnapshotReader {
+	private static final Logger trace = Logger.getLogger(SnapshotReader.class.getCanonicalName());
+	private static final String BYTE_ARRAY_DESERIALIZER = "org.apache.kafka.common.serialization.ByteArrayDeserializer"; //$NON-NLS-1$
+
+	private final KafkaConsumer<byte[], byte[]> consumer;
+	// Latest message of each key, by partition
+	private final Map<TopicPartition, Map<ByteBuffer, byte[]>> snapshot = new HashMap<TopicPartition, Map<ByteBuffer, byte[]>>();
+	private final Map<TopicPartition, Long> endOffsets = new HashMap<TopicPartition, Long>();
+
+	SnapshotReader(Properties props) {
+		Properties snapshotProps = new Properties();
+		snapshotProps.putAll(props);
+		snapshotProps.setProperty("key.deserializer", BYTE_ARRAY_DESERIALIZER); //$NON-NLS-1$
+		snapshotProps.setProperty("value.deserializer", BYTE_ARRAY_DESERIALIZER); //$NON-NLS-1$
+		snapshotProps.setProperty("enable.auto.commit", "false"); //$NON-NLS-1$ //$NON-NLS-2$
+		if (props.containsKey("client.id")) //$NON-NLS-1$
+			snapshotProps.setProperty("client.id", props.getProperty("client.id") + "-snapshot"); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+		consumer = new KafkaConsumer<byte[], byte[]>(snapshotProps);
+	}
+
+	/**
+	 * Read the topics up to their current end offsets.
+	 * @throws org.apache.kafka.common.errors.WakeupException If {@link #wakeup()}
+	 * was called while reading.
+	 */
+	void read(List<String> topics, long pollTimeout) {
+		List<TopicPartition> partitions = new ArrayList<TopicPartition>();
+		for (String topic : topics) {
+			List<PartitionInfo> partitionInfos = consumer.partitionsFor(topic);
+			if (partitionInfos == null)
+				continue;
+			for (PartitionInfo partitionInfo : partitionInfos)
+				partitions.add(new TopicPartition(topic, partitionInfo.partition()));
+		}
+		consumer.assign(partitions);
+		// Kafka 0.10.0 has no endOffsets(), the position after seeking to the end is used
+		consumer.seekToEnd(partitions);
+		for (TopicPartition partition : partitions)
+			endOffsets.put(partition, consumer.position(partition));
+		consumer.seekToBeginning(partitions);
+
+		Set<TopicPartition> unfinishedPartitions = new HashSet<TopicPartition>(partitions);
+		long messages = 0;
+		while (true) {
+			Iterator<TopicPartition> partitionIterator = unfinishedPartitions.iterator();
+			while (partitionIterator.hasNext()) {
+				TopicPartition partition = partitionIterator.next();
+				if (consumer.position(partition) >= endOffsets.get(partition)) {
+					consumer.pause(Collections.singleton(partition));
+					partitionIterator.remove();
+				}
+			}
+			if (unfinishedPartitions.isEmpty())
+				break;
+
+			ConsumerRecords<byte[], byte[]> records = consumer.poll(pollTimeout);
+			for (TopicPartition partition : records.partitions()) {
+				long endOffset = endOffsets.get(partition);
+				for (ConsumerRecord<byte[], byte[]> record : records.records(partition)) {
+					if (record.offset() >= endOffset)
+						break;
+					put(record);
+					messages++;
+				}
+			}
+		}
+		trace.log(TraceLevel.INFO, "Read " + messages + " messages for a snapshot of " + size() + " keys up to offsets: " + endOffsets); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+	}
+
+	private void put(ConsumerRecord<byte[], byte[]> record) {
+		// Compacted topics do not accept messages without a key
+		if (record.key() == null)
+			return;
+		TopicPartition partition = new TopicPartition(record.topic(), record.partition());
+		Map<ByteBuffer, byte[]> messages = snapshot.get(partition);
+		if (messages == null) {
+			messages = new HashMap<ByteBuffer, byte[]>();
+			snapshot.put(partition, messages);
+		}
+		if (record.value() == null)
+			messages.remove(ByteBuffer.wrap(record.key()));
+		else
+			messages.put(ByteBuffer.wrap(record.key()), record.value());
+	}
+
+	private long size() {
+		long size = 0;
+		for (Map<ByteBuffer, byte[]> messages : snapshot.values())
+			size += messages.size();
+		return size;
+	}
+
+	/**
+	 * Latest message of each key, by partition.
+	 */
+	Map<TopicPartition, Map<ByteBuffer, byte[]>> getSnapshot() {
+		return snapshot;
+	}
+
+	/**
+	 * Offsets following the messages of the snapshot.
+	 */
+	Map<TopicPartition, Long> getEndOffsets() {
+		return endOffsets;
+	}
+
+	void wakeup() {
+		consumer.wakeup();
+	}
+
+	void close() {
+		consumer.close();
+	}
+}
@@ -0,0 +1,139 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.logging.Logger;
+
+import com.ibm.streams.operator.logging.TraceLevel;
+
+/*
+ * First in, first out buffer of messages in a local file, holding the
+ * messages KafkaSink could not hand to the producer without blocking.
+ * Messages are appended at the end of the file and read from its start.
+ * The file is deleted whenever all its messages have been read.
+ */
+class SpillBuffer {
+	private static final Logger trace = Logger.getLogger(SpillBuffer.class.getCanonicalName());
+
+	static class SpilledMessage {
+		final String topic;
+		final byte[] key;
+		final byte[] message;
+
+		SpilledMessage(String topic, byte[] key, byte[] message) {
+			this.topic = topic;
+			this.key = key;
+			this.message = message;
+		}
+	}
+
+	private final File file;
+	private DataOutputStream out;
+	private DataInputStream in;
+	private long written = 0;
+	private long read = 0;
+	// Oldest message, read from the file but not removed yet
+	private SpilledMessage head;
+
+	SpillBuffer(File directory, String name) throws IOException {
+		file = File.createTempFile(name, ".spill", directory); //$NON-NLS-1$
+		file.deleteOnExit();
+	}
+
+	synchronized boolean isEmpty() {
+		return read == written;
+	}
+
+	synchronized long size() {
+		return written - read;
+	}
+
+	synchronized void add(String topic, byte[] key, byte[] message) throws IOException {
+		if (out == null) {
+			trace.log(TraceLevel.INFO, "Spilling messages to " + file); //$NON-NLS-1$
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		}
+		out.writeUTF(topic);
+		writeBytes(key);
+		writeBytes(message);
+		written++;
+	}
+
+	private void writeBytes(byte[] bytes) throws IOException {
+		if (bytes == null) {
+			out.writeInt(-1);
+		} else {
+			out.writeInt(bytes.length);
+			out.write(bytes);
+		}
+	}
+
+	/**
+	 * Return the oldest message without removing it, so that it stays in
+	 * the buffer if it cannot be replayed.
+	 * @return The message, or null if the buffer is empty.
+	 */
+	synchronized SpilledMessage peek() throws IOException {
+		if (isEmpty())
+			return null;
+		if (head == null) {
+			// Messages still buffered by the writer cannot be read
+			out.flush();
+			if (in == null)
+				in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			head = new SpilledMessage(in.readUTF(), readBytes(), readBytes());
+		}
+		return head;
+	}
+
+	/**
+	 * Remove the oldest message, once it has been replayed.
+	 */
+	synchronized void remove() throws IOException {
+		if (peek() == null)
+			return;
+		head = null;
+		if (++read == written) {
+			trace.log(TraceLevel.INFO, "Replayed all spilled messages."); //$NON-NLS-1$
+			clear();
+		}
+	}
+
+	private byte[] readBytes() throws IOException {
+		int length = in.readInt();
+		if (length < 0)
+			return null;
+		byte[] bytes = new byte[length];
+		in.readFully(bytes);
+		return bytes;
+	}
+
+	private void clear() throws IOException {
+		if (in != null)
+			in.close();
+		if (out != null)
+			out.close();
+		in = null;
+		out = null;
+		head = null;
+		written = read = 0;
+		if (file.exists() && !file.delete())
+			trace.log(TraceLevel.WARN, "Unable to delete " + file); //$NON-NLS-1$
+	}
+
+	synchronized void close() throws IOException {
+		if (!isEmpty())
+			trace.log(TraceLevel.WARN, "Discarding " + size() + " spilled messages."); //$NON-NLS-1$ //$NON-NLS-2$
+		clear();
+	}
+}
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.kafka.clients.producer.Partitioner;
+import org.apache.kafka.clients.producer.internals.DefaultPartitioner;
+import org.apache.kafka.common.Cluster;
+import org.apache.kafka.common.PartitionInfo;
+
+/*
+ * Partitioner sending messages without a key to the same partition of a
+ * topic until about batch.size bytes have been sent to it, or linger.ms has
+ * expired since it was chosen, before moving on to the next partition. The
+ * producer then fills one batch at a time instead of spreading the messages
+ * over the batches of all the partitions. Messages with a key are hashed
+ * like the default partitioner does.
+ */
+public class StickyPartitioner implements Partitioner {
+
+	private final DefaultPartitioner keyPartitioner = new DefaultPartitioner();
+	private final ConcurrentHashMap<String, StickyPartition> stickyPartitions = new ConcurrentHashMap<String, StickyPartition>();
+	private long batchSize = 16384;
+	private long lingerMs = 0;
+
+	@Override
+	public void configure(Map<String, ?> configs) {
+		keyPartitioner.configure(configs);
+		Object value = configs.get("batch.size"); //$NON-NLS-1$
+		if (value != null)
+			batchSize = Long.parseLong(value.toString());
+		value = configs.get("linger.ms"); //$NON-NLS-1$
+		if (value != null)
+			lingerMs = Long.parseLong(value.toString());
+	}
+
+	@Override
+	public int partition(String topic, Object key, byte[] keyBytes, Object value, byte[] valueBytes, Cluster cluster) {
+		if (keyBytes != null)
+			return keyPartitioner.partition(topic, key, keyBytes, value, valueBytes, cluster);
+
+		StickyPartition stickyPartition = stickyPartitions.get(topic);
+		if (stickyPartition == null) {
+			stickyPartitions.putIfAbsent(topic, new StickyPartition());
+			stickyPartition = stickyPartitions.get(topic);
+		}
+		return stickyPartition.next(topic, valueBytes == null ? 0 : valueBytes.length, cluster);
+	}
+
+	@Override
+	public void close() {
+		keyPartitioner.close();
+	}
+
+	private class StickyPartition {
+		private int rotation = 0;
+		private int partition = -1;
+		private long bytes;
+		private long since;
+
+		synchronized int next(String topic, int size, Cluster cluster) {
+			long now = System.currentTimeMillis();
+			if (partition < 0 || bytes + size > batchSize
+					|| (lingerMs > 0 && now - since >= lingerMs)) {
+				List<PartitionInfo> partitions = cluster.availablePartitionsForTopic(topic);
+				if (partitions.isEmpty())
+					partitions = cluster.partitionsForTopic(topic);
+				partition = partitions.get(rotation++ % partitions.size()).partition();
+				rotation &= Integer.MAX_VALUE;
+				bytes = 0;
+				since = now;
+			}
+			bytes += size;
+			return partition;
+		}
+	}
+}
@@ -0,0 +1,72 @@
+/*******************************************************************************
+ * Copyright (C) 2016, International Business Machines Corporation
+ * All Rights Reserved
+ *******************************************************************************/
+package com.ibm.streamsx.messaging.kafka;
+
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+
+/*
+ * Token bucket limiting the rate of the messages KafkaSource reads, in
+ * messages or in bytes per second, bytes being the serialized sizes of the
+ * keys and messages. The bucket holds at most one second of tokens.
+ * Submitting a batch may take it below zero, the consumers then pause
+ * fetching until it is refilled rather than sleeping, so that polling keeps
+ * the consumers in their group. Shared by the consumer clients of an
+ * operator, the rate can be changed at runtime; a rate of 0 or less
+ * disables the throttle.
+ */
+class Throttle {
+	private final boolean countBytes;
+	private double rate;
+	private double tokens;
+	private long refillTime = System.nanoTime();
+
+	Throttle(double rate, boolean countBytes) {
+		this.countBytes = countBytes;
+		this.rate = rate;
+		this.tokens = rate;
+	}
+
+	synchronized void setRate(double rate) {
+		refill();
+		this.rate = rate;
+		tokens = Math.min(tokens, Math.max(rate, 0));
+	}
+
+	synchronized double getRate() {
+		return rate;
+	}
+
+	/**
+	 * @return true if fetching must pause until the bucket is refilled.
+	 */
+	synchronized boolean isExhausted() {
+		if (rate <= 0)
+			return false;
+		refill();
+		return tokens <= 0;
+	}
+
+	void consume(ConsumerRecords<?,?> records) {
+		long amount = 0;
+		if (countBytes) {
+			for (ConsumerRecord<?,?> record : records)
+				amount += Math.max(record.serializedKeySize(), 0) + Math.max(record.serializedValueSize(), 0);
+		} else {
+			amount = records.count();
+		}
+		synchronized (this) {
+			if (rate > 0)
+				tokens -= amount;
+		}
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		if (rate > 0)
+			tokens = Math.min(rate, tokens + rate * (now - refillTime) / 1e9);
+		refillTime = now;
+	}
+}